@@ -0,0 +1,88 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import hudson.EnvVars;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Expansion of build variables in the notification fields, done for every notification of every build.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EnvVarsBenchmark {
+
+    private DeploymentNotificationBean bean;
+    private EnvVars envVars;
+
+    @Setup
+    public void setup() {
+        bean = new DeploymentNotificationBean("credentialsId", "12345",
+                "Deployed ${JOB_NAME} #${BUILD_NUMBER}", "${GIT_COMMIT}", "${CHANGELOG}", "${GIT_COMMIT}",
+                "${BUILD_URL}", "${BUILD_USER}", "${ENTITY_GUID}", "", "BASIC", "${JOB_NAME}", "", "${VERSION}", false);
+        envVars = new EnvVars();
+        for (int i = 0; i < 100; i++) {
+            envVars.put("UNRELATED_VARIABLE_" + i, "value" + i);
+        }
+        envVars.put("JOB_NAME", "folder/deploy-service");
+        envVars.put("BUILD_NUMBER", "1234");
+        envVars.put("BUILD_URL", "https://jenkins.example.com/job/folder/job/deploy-service/1234/");
+        envVars.put("BUILD_USER", "jenkins");
+        envVars.put("GIT_COMMIT", "5f2a3c1d9e8b7a6f5e4d3c2b1a0f9e8d7c6b5a4f");
+        envVars.put("CHANGELOG", "Fix \"quoted\" names\nUpdate dependencies");
+        envVars.put("ENTITY_GUID", "MXxBUE18QVBQTElDQVRJT058MTIzNDU");
+        envVars.put("VERSION", "1.2.3");
+    }
+
+    @Benchmark
+    public void expandFields(Blackhole bh) {
+        bh.consume(bean.getDescription(envVars));
+        bh.consume(bean.getRevision(envVars));
+        bh.consume(bean.getChangelog(envVars));
+        bh.consume(bean.getCommit(envVars));
+        bh.consume(bean.getDeeplink(envVars));
+        bh.consume(bean.getUser(envVars));
+        bh.consume(bean.getEntityGuid(envVars));
+        bh.consume(bean.getDeploymentType(envVars));
+        bh.consume(bean.getGroupId(envVars));
+        bh.consume(bean.getTimestamp(envVars));
+        bh.consume(bean.getVersion(envVars));
+        bh.consume(bean.getEuropean(envVars));
+    }
+
+    @Benchmark
+    public ResolvedNotification resolve() {
+        return bean.resolve(envVars);
+    }
+}
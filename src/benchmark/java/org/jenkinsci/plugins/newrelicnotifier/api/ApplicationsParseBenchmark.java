@@ -0,0 +1,77 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading an applications response, for a single page and for an account with many applications.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ApplicationsParseBenchmark {
+
+    @Param({"200", "10000"})
+    public int applications;
+
+    private String response;
+
+    @Setup
+    public void setup() {
+        StringBuilder json = new StringBuilder("{\"applications\":[");
+        for (int i = 0; i < applications; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"id\":").append(1000000 + i)
+                    .append(",\"name\":\"application-").append(i).append('"')
+                    .append(",\"language\":\"java\",\"health_status\":\"green\",\"reporting\":true")
+                    .append(",\"last_reported_at\":\"2024-01-01T00:00:00+00:00\"")
+                    .append(",\"application_summary\":{\"response_time\":12.3,\"throughput\":456.0,\"error_rate\":0.0,")
+                    .append("\"apdex_target\":0.5,\"apdex_score\":1.0,\"host_count\":2,\"instance_count\":4}")
+                    .append(",\"settings\":{\"app_apdex_threshold\":0.5,\"end_user_apdex_threshold\":7.0,")
+                    .append("\"enable_real_user_monitoring\":true,\"use_server_side_config\":false}")
+                    .append(",\"links\":{\"application_instances\":[1,2,3,4],\"servers\":[],\"application_hosts\":[5,6]}}");
+        }
+        json.append("]}");
+        response = json.toString();
+    }
+
+    @Benchmark
+    public CompactApplicationList parseApplications() throws IOException {
+        return NewRelicClientImpl.parseApplications(new StringReader(response));
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building change tracking requests and reading their responses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PayloadBenchmark {
+
+    private static final String CHANGELOG = "Fix \"quoted\" names\nUpdate dependencies\n\tand a \\ backslash";
+
+    private NewRelicClientImpl client;
+    private List<Deployment> batch;
+    private String response;
+
+    @Setup
+    public void setup() {
+        client = new NewRelicClientImpl();
+        batch = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            batch.add(new Deployment(CHANGELOG, "5f2a3c1d9e8b7a6f5e4d3c2b1a0f9e8d7c6b5a4f",
+                    "https://jenkins.example.com/job/deploy/1234/", "BASIC", "Deployed by Jenkins",
+                    "MXxBUE18QVBQTElDQVRJT058MTIzNDU" + i, "deploy", "1700000000000", "jenkins", "1.2.3"));
+        }
+        response = "{\"data\":{\"changeTrackingCreateDeployment\":"
+                + "{\"deploymentId\":\"71c3f8f5-cecc-4299-aa0f-18f3fafa6313\",\"user\":\"jenkins\"}}}";
+    }
+
+    @Benchmark
+    public byte[] makePayload() {
+        Deployment d = batch.get(0);
+        return client.makePayload(d.getChangelog(), d.getCommit(), d.getDeepLink(), d.getDeploymentType(),
+                d.getDescription(), d.getEntityGuid(), d.getGroupId(), d.getTimestamp(), d.getUser(), d.getVersion());
+    }
+
+    @Benchmark
+    public byte[] makeBatchPayload() {
+        return client.makeBatchPayload(batch);
+    }
+
+    @Benchmark
+    public String parseResponseBody() {
+        return client.parseResponseBody(response);
+    }
+}
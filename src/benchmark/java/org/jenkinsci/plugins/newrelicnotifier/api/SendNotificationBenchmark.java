@@ -0,0 +1,120 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import com.sun.net.httpserver.HttpServer;
+import hudson.model.TaskListener;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A change tracking notification from payload to parsed response, over HTTP to an in-process NerdGraph stub.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SendNotificationBenchmark {
+
+    private static final byte[] RESPONSE = ("{\"data\":{\"changeTrackingCreateDeployment\":"
+            + "{\"deploymentId\":\"71c3f8f5-cecc-4299-aa0f-18f3fafa6313\"}}}").getBytes(StandardCharsets.UTF_8);
+
+    private HttpServer server;
+    private CloseableHttpClient httpClient;
+    private NewRelicClientImpl client;
+
+    @Setup
+    public void setup() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext(NewRelicClientImpl.NERD_GRAPH_ENDPOINT, exchange -> {
+            try (InputStream in = exchange.getRequestBody()) {
+                in.readAllBytes();
+            }
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, RESPONSE.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(RESPONSE);
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(4));
+        server.start();
+
+        // send every request to the stub, whatever New Relic host it is meant for
+        HttpHost stub = new HttpHost(server.getAddress().getAddress(), server.getAddress().getPort(), "http");
+        httpClient = HttpClients.custom()
+                .setConnectionManager(new PoolingHttpClientConnectionManager())
+                .setRoutePlanner((target, request, context) -> new HttpRoute(stub))
+                .build();
+        client = new NewRelicClientImpl() {
+            @Override
+            protected CloseableHttpClient getHttpClient(String host) {
+                return httpClient;
+            }
+        };
+        RateLimiter.configure(0, 1);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        httpClient.close();
+        server.stop(0);
+        RateLimiter.configure(600, 20);
+    }
+
+    @Benchmark
+    public void sendNotificationV2() throws IOException {
+        client.sendNotificationV2("apiKey",
+                "Fix \"quoted\" names\nUpdate dependencies",
+                "5f2a3c1d9e8b7a6f5e4d3c2b1a0f9e8d7c6b5a4f",
+                "https://jenkins.example.com/job/deploy/1234/",
+                "BASIC",
+                "Deployed by Jenkins",
+                "MXxBUE18QVBQTElDQVRJT058MTIzNDU",
+                "deploy",
+                "1700000000000",
+                "jenkins",
+                "1.2.3",
+                false,
+                TaskListener.NULL);
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+import hudson.model.Job;
+import hudson.util.Secret;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * API keys used by one run. Credentials are looked up once per endpoint and decrypted once per credential ID and
+ * endpoint, however many notifications share them. Only used from the build thread.
+ */
+final class ApiKeyCache {
+
+    private final Job<?, ?> owner;
+    private final Map<String, List<StandardUsernamePasswordCredentials>> available = new HashMap<>();
+    private final Map<List<String>, Optional<ApiKey>> keys = new HashMap<>();
+
+    ApiKeyCache(Job<?, ?> owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * @param credentialsId The ID of the username/password credential holding the API key
+     * @param endpoint The New Relic endpoint the key is used for
+     * @return The API key, or {@code null} if there is no such credential
+     */
+    ApiKey get(String credentialsId, String endpoint) {
+        return keys.computeIfAbsent(Arrays.asList(credentialsId, endpoint), k -> {
+            List<StandardUsernamePasswordCredentials> credentials = available.computeIfAbsent(endpoint,
+                    e -> DeploymentNotificationBean.availableCredentials(owner, e));
+            StandardUsernamePasswordCredentials c = CredentialsMatchers.firstOrNull(credentials,
+                    CredentialsMatchers.withId(credentialsId));
+            return Optional.ofNullable(c).map(found -> new ApiKey(found.getPassword()));
+        }).orElse(null);
+    }
+
+    /**
+     * An API key, both encrypted for storage and in plain text for requests.
+     */
+    static final class ApiKey {
+        private final Secret secret;
+        private final String plainText;
+
+        ApiKey(Secret secret) {
+            this.secret = secret;
+            this.plainText = Secret.toString(secret);
+        }
+
+        Secret getSecret() {
+            return secret;
+        }
+
+        String getPlainText() {
+            return plainText;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.Util;
+import hudson.model.Computer;
+import org.jenkinsci.plugins.newrelicnotifier.api.Application;
+import org.jenkinsci.plugins.newrelicnotifier.api.ClientMetrics;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Controller-wide, size bounded cache of the applications available to an API key, so configuration pages
+ * can render the application list from memory.
+ * <p>
+ * Entries older than the configured time to live are still served, while a fresh copy is loaded in the
+ * background. When the cache is full the least recently used entry is evicted.
+ */
+public class ApplicationCatalogCache {
+
+    private static final Logger LOGGER = Logger.getLogger(ApplicationCatalogCache.class.getName());
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Loads the applications for an API key from New Relic.
+     */
+    @FunctionalInterface
+    public interface Loader {
+        List<Application> load() throws IOException;
+    }
+
+    /**
+     * Returns the applications for the given credentials, loading them on first use.
+     *
+     * @param credentialId The ID of the credentials holding the API key
+     * @param apiKey The API key, so that credentials with the same ID in different folders do not share entries
+     * @param european Whether the API key belongs to a European account
+     * @param loader Loads the applications from New Relic
+     * @return The cached applications
+     * @throws IOException when the applications are not cached yet and cannot be loaded
+     */
+    public List<Application> get(String credentialId, String apiKey, boolean european, Loader loader) throws IOException {
+        String key = key(credentialId, apiKey, european);
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && entry.isStale() && !entry.refreshing) {
+                entry.refreshing = true;
+                Entry stale = entry;
+                Computer.threadPoolForRemoting.submit(() -> refresh(key, stale, loader));
+            }
+        }
+        ClientMetrics.get().applicationCache(entry != null);
+        if (entry != null) {
+            return entry.applications;
+        }
+        return put(key, loader.load()).applications;
+    }
+
+    /**
+     * Returns the cached applications for the given credentials without loading or refreshing them.
+     *
+     * @return The cached applications, or {@code null} if there are none
+     */
+    @CheckForNull
+    public synchronized List<Application> peek(String credentialId, String apiKey, boolean european) {
+        Entry entry = entries.get(key(credentialId, apiKey, european));
+        return entry != null ? entry.applications : null;
+    }
+
+    /**
+     * Drops the cached applications for the given credentials and loads them again.
+     *
+     * @return The freshly loaded applications
+     * @throws IOException when the applications cannot be loaded
+     */
+    public List<Application> reload(String credentialId, String apiKey, boolean european, Loader loader) throws IOException {
+        String key = key(credentialId, apiKey, european);
+        synchronized (this) {
+            entries.remove(key);
+        }
+        return put(key, loader.load()).applications;
+    }
+
+    private void refresh(String key, Entry stale, Loader loader) {
+        try {
+            put(key, loader.load());
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.FINE, "Failed to refresh New Relic applications, keeping the cached list", e);
+            synchronized (this) {
+                stale.refreshing = false;
+            }
+        }
+    }
+
+    private synchronized Entry put(String key, List<Application> applications) {
+        Entry entry = new Entry(Collections.unmodifiableList(applications));
+        entries.put(key, entry);
+        int maxSize = NewRelicGlobalConfiguration.get().getApplicationCacheSize();
+        while (entries.size() > maxSize) {
+            entries.remove(entries.keySet().iterator().next());
+        }
+        return entry;
+    }
+
+    private static String key(String credentialId, String apiKey, boolean european) {
+        return credentialId + ':' + european + ':' + Util.getDigestOf(apiKey);
+    }
+
+    private static final class Entry {
+        private final List<Application> applications;
+        private final long loadedAt = System.nanoTime();
+        private boolean refreshing;
+
+        Entry(List<Application> applications) {
+            this.applications = applications;
+        }
+
+        boolean isStale() {
+            long ttl = TimeUnit.MINUTES.toNanos(NewRelicGlobalConfiguration.get().getApplicationCacheTtl());
+            return System.nanoTime() - loadedAt >= ttl;
+        }
+    }
+}
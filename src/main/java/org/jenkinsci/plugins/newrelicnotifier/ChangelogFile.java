@@ -0,0 +1,80 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import hudson.FilePath;
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads a changelog from a workspace file, at most a given number of bytes of it, so a large generated changelog is
+ * neither copied from the agent nor held in memory as a whole.
+ */
+final class ChangelogFile {
+
+    private ChangelogFile() {
+    }
+
+    /**
+     * @param file The UTF-8 encoded changelog
+     * @param limit The maximum number of bytes to read
+     * @param listener Where to report that the changelog was truncated
+     * @return The changelog, cut at the last whole character within the limit
+     */
+    static String read(FilePath file, int limit, TaskListener listener) throws IOException, InterruptedException {
+        byte[] bytes;
+        boolean truncated;
+        try (InputStream in = file.read()) {
+            bytes = in.readNBytes(limit);
+            truncated = in.read() >= 0;
+        }
+        int length = bytes.length;
+        if (truncated) {
+            length = wholeCharacters(bytes, length);
+            listener.getLogger().println("Changelog truncated to the first " + length + " bytes of "
+                    + file.getRemote());
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return The length of the longest prefix of the UTF-8 bytes that does not end within a character
+     */
+    static int wholeCharacters(byte[] bytes, int length) {
+        if (length == 0) {
+            return 0;
+        }
+        // walk back over continuation bytes (10xxxxxx) to the first byte of the last character
+        int first = length - 1;
+        while (first > 0 && length - first < 4 && (bytes[first] & 0xC0) == 0x80) {
+            first--;
+        }
+        int lead = bytes[first] & 0xFF;
+        int size = lead >= 0xF0 ? 4 : lead >= 0xE0 ? 3 : lead >= 0xC0 ? 2 : 1;
+        return first + size <= length ? length : first;
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import hudson.init.Terminator;
+import org.jenkinsci.plugins.newrelicnotifier.api.DispatchExecutor;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Controller-wide queue delivering notifications in the background, so builds using asynchronous
+ * notification do not wait for New Relic.
+ * <p>
+ * The queue holds at most {@link NewRelicGlobalConfiguration#getAsyncQueueSize()} deliveries. What happens when
+ * it is full is decided by {@link NewRelicGlobalConfiguration#getAsyncOverflowPolicy()}. Queue size and worker count
+ * are read when the queue is first used. Pipeline steps {@link #queue(List, Runnable) queue} their deliveries without
+ * ever blocking: when the queue is full they wait for room behind the queued deliveries. On shutdown, queued
+ * deliveries get {@link NewRelicGlobalConfiguration#getAsyncDrainTimeout()} seconds to complete; those not started by
+ * then are {@link Delivery#shutdown() shut down}, which saves them to the {@link NotificationOutbox} unless their
+ * owner sends them again after the restart.
+ */
+public final class DeploymentDispatcher {
+
+    private static final Logger LOGGER = Logger.getLogger(DeploymentDispatcher.class.getName());
+
+    private static DeploymentDispatcher instance;
+
+    /**
+     * What to do with a delivery when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /** Block the build until there is room in the queue. */
+        WAIT,
+        /** Deliver the notification on the build's own thread. */
+        RUN_IN_BUILD,
+        /** Drop the notification and record it as discarded. */
+        DISCARD
+    }
+
+    /**
+     * A unit of work handed to the queue.
+     */
+    public interface Delivery extends Runnable {
+
+        /**
+         * Called instead of {@link #run()} when the delivery is dropped.
+         *
+         * @param reason Why the delivery was dropped
+         */
+        void discarded(String reason);
+
+        /**
+         * Called instead of {@link #run()} when Jenkins shuts down before the delivery started. Deliveries their owner
+         * sends again after the restart override this; by default they are {@link #discarded(String) discarded}.
+         */
+        default void shutdown() {
+            discarded("Jenkins is shutting down");
+        }
+    }
+
+    private final DispatchExecutor workers;
+    private final Semaphore capacity;
+    /**
+     * Deliveries handed to a worker that have not started yet, with what to run once they complete. Whoever removes
+     * a delivery from here either runs or discards it.
+     */
+    private final Map<Delivery, Runnable> queued = new ConcurrentHashMap<>();
+    /**
+     * Deliveries queued while the queue was full, with what to run once they complete, handed to a worker as soon
+     * as there is room.
+     */
+    private final Queue<Map.Entry<Delivery, Runnable>> waiting = new ConcurrentLinkedQueue<>();
+
+    private DeploymentDispatcher(int workerCount, int queueSize) {
+        this.workers = DispatchExecutor.create("DeploymentDispatcher.worker", workerCount);
+        this.capacity = new Semaphore(queueSize);
+    }
+
+    public static synchronized DeploymentDispatcher get() {
+        if (instance == null) {
+            NewRelicGlobalConfiguration config = NewRelicGlobalConfiguration.get();
+            instance = new DeploymentDispatcher(config.getAsyncWorkers(), config.getAsyncQueueSize());
+        }
+        return instance;
+    }
+
+    /**
+     * Queues the deliveries and returns without waiting for them.
+     *
+     * @param deliveries The deliveries to queue
+     * @param onComplete Run once after every delivery has run or been discarded
+     * @throws InterruptedException if interrupted while waiting for room in the queue
+     */
+    public void dispatch(List<? extends Delivery> deliveries, Runnable onComplete) throws InterruptedException {
+        OverflowPolicy policy = NewRelicGlobalConfiguration.get().getAsyncOverflowPolicy();
+        Runnable done = completion(deliveries.size(), onComplete);
+        for (Delivery delivery : deliveries) {
+            if (policy == OverflowPolicy.WAIT) {
+                capacity.acquire();
+            } else if (!capacity.tryAcquire()) {
+                if (policy == OverflowPolicy.RUN_IN_BUILD) {
+                    runQuietly(delivery);
+                } else {
+                    delivery.discarded("New Relic notification queue is full");
+                }
+                done.run();
+                continue;
+            }
+            enqueue(delivery, done);
+        }
+    }
+
+    /**
+     * Queues the deliveries without blocking the caller or running any of them on its thread. When the queue is
+     * full, the deliveries wait for room behind the queued ones, unless the overflow policy is
+     * {@link OverflowPolicy#DISCARD}.
+     *
+     * @param deliveries The deliveries to queue
+     * @param onComplete Run once after every delivery has run or been discarded
+     */
+    public void queue(List<? extends Delivery> deliveries, Runnable onComplete) {
+        boolean discard = NewRelicGlobalConfiguration.get().getAsyncOverflowPolicy() == OverflowPolicy.DISCARD;
+        Runnable done = completion(deliveries.size(), onComplete);
+        for (Delivery delivery : deliveries) {
+            if (waiting.isEmpty() && capacity.tryAcquire()) {
+                enqueue(delivery, done);
+            } else if (discard) {
+                delivery.discarded("New Relic notification queue is full");
+                done.run();
+            } else {
+                waiting.add(Map.entry(delivery, done));
+                startWaiting();
+            }
+        }
+    }
+
+    /**
+     * Hands a delivery to a worker. The caller holds a permit of {@link #capacity}, which is released once the
+     * delivery completes.
+     */
+    private void enqueue(Delivery delivery, Runnable done) {
+        queued.put(delivery, done);
+        try {
+            workers.execute(() -> {
+                if (queued.remove(delivery) == null) {
+                    // discarded on shutdown
+                    release();
+                    return;
+                }
+                try {
+                    runQuietly(delivery);
+                } finally {
+                    release();
+                    done.run();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queued.remove(delivery);
+            release();
+            shutdown(delivery, done);
+        }
+    }
+
+    private void release() {
+        capacity.release();
+        startWaiting();
+    }
+
+    /**
+     * Hands waiting deliveries to workers while there is room. Called after a delivery is added to
+     * {@link #waiting} and after a permit is released, so one of the two always sees the other.
+     */
+    private void startWaiting() {
+        while (!waiting.isEmpty() && capacity.tryAcquire()) {
+            Map.Entry<Delivery, Runnable> next = waiting.poll();
+            if (next == null) {
+                // taken by another thread
+                capacity.release();
+                return;
+            }
+            enqueue(next.getKey(), next.getValue());
+        }
+    }
+
+    /**
+     * @return A callback to run once per delivery, running {@code onComplete} after the last one, or right away if
+     *         there are no deliveries
+     */
+    private static Runnable completion(int deliveries, Runnable onComplete) {
+        AtomicInteger remaining = new AtomicInteger(deliveries);
+        Runnable done = () -> {
+            if (remaining.decrementAndGet() == 0) {
+                try {
+                    onComplete.run();
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Failed to record New Relic notification outcome", e);
+                }
+            }
+        };
+        if (deliveries == 0) {
+            remaining.incrementAndGet();
+            done.run();
+        }
+        return done;
+    }
+
+    /**
+     * @return The number of deliveries waiting for room in the queue, waiting for a worker or running on one
+     */
+    public int getQueueDepth() {
+        return waiting.size() + workers.getQueueDepth();
+    }
+
+    /**
+     * @return The number of deliveries waiting for or running on a worker, {@code 0} if nothing was dispatched yet
+     */
+    static int peekQueueDepth() {
+        DeploymentDispatcher dispatcher;
+        synchronized (DeploymentDispatcher.class) {
+            dispatcher = instance;
+        }
+        return dispatcher != null ? dispatcher.getQueueDepth() : 0;
+    }
+
+    private static void runQuietly(Delivery delivery) {
+        try {
+            delivery.run();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "New Relic notification failed", e);
+        }
+    }
+
+    /**
+     * Stops accepting deliveries and waits for queued ones to complete. Deliveries that have not started when the
+     * drain timeout expires are {@link Delivery#shutdown() shut down}, so they are sent again after the restart.
+     */
+    @Terminator
+    public static void drain() throws InterruptedException {
+        DeploymentDispatcher dispatcher;
+        synchronized (DeploymentDispatcher.class) {
+            dispatcher = instance;
+        }
+        if (dispatcher == null) {
+            return;
+        }
+        dispatcher.workers.shutdown();
+        // nothing is handed to the workers any more, so deliveries still waiting for room are shut down right away
+        for (Map.Entry<Delivery, Runnable> next; (next = dispatcher.waiting.poll()) != null; ) {
+            shutdown(next.getKey(), next.getValue());
+        }
+        int timeout = NewRelicGlobalConfiguration.get().getAsyncDrainTimeout();
+        if (!dispatcher.workers.awaitTermination(timeout, TimeUnit.SECONDS)) {
+            LOGGER.log(Level.WARNING, "{0} New Relic notifications were not delivered before shutdown",
+                    dispatcher.workers.getQueueDepth());
+            dispatcher.workers.shutdownNow();
+            int kept = 0;
+            for (Delivery delivery : dispatcher.queued.keySet()) {
+                Runnable done = dispatcher.queued.remove(delivery);
+                if (done != null && shutdown(delivery, done)) {
+                    kept++;
+                }
+            }
+            if (kept > 0) {
+                LOGGER.log(Level.INFO, "Kept {0} queued New Relic notifications for delivery after restart", kept);
+            }
+        }
+    }
+
+    private static boolean shutdown(Delivery delivery, Runnable done) {
+        try {
+            delivery.shutdown();
+            return true;
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to save a New Relic notification on shutdown", e);
+            return false;
+        } finally {
+            done.run();
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+import org.jenkinsci.plugins.newrelicnotifier.api.DeliveryTrace;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the outcome of the New Relic notifications sent for a run, and how long each of them took, so that slow
+ * notifications can be found without reading the console. Shown on the run page and at {@code newrelic/}.
+ */
+public class DeploymentNotificationAction implements RunAction2 {
+
+    private final List<Outcome> outcomes = new ArrayList<>();
+
+    private transient Run<?, ?> run;
+
+    /**
+     * Returns the action of the given run, adding one if there is none yet.
+     *
+     * @param run The run
+     * @return The run's action
+     */
+    public static DeploymentNotificationAction of(Run<?, ?> run) {
+        synchronized (run) {
+            DeploymentNotificationAction action = run.getAction(DeploymentNotificationAction.class);
+            if (action == null) {
+                action = new DeploymentNotificationAction();
+                run.addAction(action);
+            }
+            return action;
+        }
+    }
+
+    public synchronized void add(Outcome outcome) {
+        outcomes.add(outcome);
+    }
+
+    public synchronized List<Outcome> getOutcomes() {
+        return Collections.unmodifiableList(new ArrayList<>(outcomes));
+    }
+
+    public Run<?, ?> getRun() {
+        return run;
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> r) {
+        this.run = r;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "New Relic Deployment Notifications";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "newrelic";
+    }
+
+    /**
+     * Keeps the outcomes short in {@code build.xml}.
+     */
+    @Initializer(before = InitMilestone.PLUGINS_STARTED)
+    public static void addAliases() {
+        Run.XSTREAM2.alias("newrelic-outcome", Outcome.class);
+    }
+
+    /**
+     * How a notification ended.
+     */
+    public enum Status {
+        DELIVERED("Delivered"),
+        FAILED("Failed"),
+        /**
+         * Failed, and saved to be sent again once New Relic can be reached.
+         */
+        SAVED("Saved for retry"),
+        /**
+         * Dropped from a full or stopping queue.
+         */
+        DISCARDED("Discarded");
+
+        private final String displayName;
+
+        Status(String displayName) {
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+
+    /**
+     * Time spent on a notification, collected while it is delivered. For batched notifications, the attempts and the
+     * serializing and network time are those of the whole batch.
+     */
+    public static final class Timing implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private int attempts;
+        private long queuedNanos;
+        private long resolvingNanos;
+        private long serializingNanos;
+        private long networkNanos;
+        private transient long queuedAt;
+
+        /**
+         * @param nanos Time spent expanding the notification and looking up its API key
+         */
+        void resolved(long nanos) {
+            resolvingNanos += nanos;
+        }
+
+        /**
+         * Called when the notification is handed to a queue.
+         */
+        void queued() {
+            queuedAt = System.nanoTime();
+        }
+
+        /**
+         * Called when a thread picks the notification up.
+         */
+        void started() {
+            if (queuedAt != 0) {
+                queuedNanos += System.nanoTime() - queuedAt;
+                queuedAt = 0;
+            }
+        }
+
+        /**
+         * Adds the cost of the client calls made to deliver the notification.
+         */
+        void delivered(DeliveryTrace trace) {
+            attempts += trace.getAttempts();
+            serializingNanos += trace.getSerializingNanos();
+            networkNanos += trace.getNetworkNanos();
+        }
+    }
+
+    /**
+     * Outcome of a single notification.
+     */
+    public static class Outcome {
+
+        /**
+         * Longest message kept in {@code build.xml}.
+         */
+        static final int MAX_MESSAGE_LENGTH = 2048;
+
+        private final String target;
+        // only kept for notifications that were not delivered
+        private final String message;
+        private final Status status;
+        private final String deploymentId;
+        private final int attempts;
+        // milliseconds
+        private final long queued;
+        private final long resolving;
+        private final long serializing;
+        private final long network;
+
+        /**
+         * @param deploymentId The ID of the recorded deployment, if New Relic returned one
+         * @param message What was logged while sending the notification; dropped once it was delivered
+         * @param timing The time spent on the notification
+         */
+        public Outcome(String target, Status status, String deploymentId, String message, Timing timing) {
+            this.target = target;
+            if (status == Status.DELIVERED || message == null) {
+                this.message = null;
+            } else {
+                this.message = message.length() > MAX_MESSAGE_LENGTH
+                        ? message.substring(0, MAX_MESSAGE_LENGTH) + "..."
+                        : message;
+            }
+            this.status = status;
+            this.deploymentId = deploymentId;
+            this.attempts = timing.attempts;
+            this.queued = TimeUnit.NANOSECONDS.toMillis(timing.queuedNanos);
+            this.resolving = TimeUnit.NANOSECONDS.toMillis(timing.resolvingNanos);
+            this.serializing = TimeUnit.NANOSECONDS.toMillis(timing.serializingNanos);
+            this.network = TimeUnit.NANOSECONDS.toMillis(timing.networkNanos);
+        }
+
+        /**
+         * @return The entity GUID or application ID that was notified
+         */
+        public String getTarget() {
+            return target;
+        }
+
+        public boolean isSuccess() {
+            return status == Status.DELIVERED;
+        }
+
+        /**
+         * @return What was logged for a notification that was not delivered, {@code null} otherwise
+         */
+        public String getMessage() {
+            return message;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public String getDeploymentId() {
+            return deploymentId;
+        }
+
+        /**
+         * @return The number of HTTP requests sent, including retries
+         */
+        public int getAttempts() {
+            return attempts;
+        }
+
+        /**
+         * @return Milliseconds spent waiting in a queue
+         */
+        public long getQueuedMillis() {
+            return queued;
+        }
+
+        /**
+         * @return Milliseconds spent expanding the notification and looking up its API key
+         */
+        public long getResolvingMillis() {
+            return resolving;
+        }
+
+        /**
+         * @return Milliseconds spent building the request
+         */
+        public long getSerializingMillis() {
+            return serializing;
+        }
+
+        /**
+         * @return Milliseconds spent talking to New Relic
+         */
+        public long getNetworkMillis() {
+            return network;
+        }
+    }
+}
@@ -34,10 +34,13 @@ import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.EnvVars;
 import hudson.Extension;
+import hudson.FilePath;
+import hudson.Util;
 import hudson.model.AbstractDescribableImpl;
 import hudson.model.Descriptor;
 import hudson.model.Item;
 import hudson.model.Job;
+import hudson.model.TaskListener;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import hudson.util.Secret;
@@ -46,10 +49,14 @@ import org.jenkinsci.plugins.newrelicnotifier.api.NewRelicClient;
 import org.jenkinsci.plugins.newrelicnotifier.api.NewRelicClientImpl;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.interceptor.RequirePOST;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 
 /**
  * Bean to hold each deployment notification configuration.
@@ -71,6 +78,24 @@ public class DeploymentNotificationBean extends AbstractDescribableImpl<Deployme
     private final String timestamp;
     private final String version;
     private final boolean european;
+    private String changelogFile;
+
+    /**
+     * The fields referring to build variables, one bit per field, found when the configuration is created or loaded.
+     */
+    private transient int templates;
+
+    private static final int DESCRIPTION = 1;
+    private static final int REVISION = 1 << 1;
+    private static final int CHANGELOG = 1 << 2;
+    private static final int COMMIT = 1 << 3;
+    private static final int DEEPLINK = 1 << 4;
+    private static final int USER = 1 << 5;
+    private static final int ENTITY_GUID = 1 << 6;
+    private static final int DEPLOYMENT_TYPE = 1 << 7;
+    private static final int GROUP_ID = 1 << 8;
+    private static final int TIMESTAMP = 1 << 9;
+    private static final int VERSION = 1 << 10;
 
     @DataBoundConstructor
     public DeploymentNotificationBean(String apiKey, String applicationId, String description, String revision, String changelog, String commit, String deeplink, String user, String entityGuid, String deploymentId, String deploymentType, String groupId, String timestamp, String version, boolean european) {
@@ -90,6 +115,94 @@ public class DeploymentNotificationBean extends AbstractDescribableImpl<Deployme
         this.timestamp = timestamp;
         this.version = version;
         this.european = european;
+        this.templates = findTemplates();
+    }
+
+    protected Object readResolve() {
+        templates = findTemplates();
+        return this;
+    }
+
+    private int findTemplates() {
+        return template(description, DESCRIPTION)
+                | template(revision, REVISION)
+                | template(changelog, CHANGELOG)
+                | template(commit, COMMIT)
+                | template(deeplink, DEEPLINK)
+                | template(user, USER)
+                | template(entityGuid, ENTITY_GUID)
+                | template(deploymentType, DEPLOYMENT_TYPE)
+                | template(groupId, GROUP_ID)
+                | template(timestamp, TIMESTAMP)
+                | template(version, VERSION);
+    }
+
+    private static int template(String value, int field) {
+        return value != null && value.indexOf('$') >= 0 ? field : 0;
+    }
+
+    private String expand(EnvVars env, String value, int field) {
+        return (templates & field) != 0 ? env.expand(value) : value;
+    }
+
+    /**
+     * Expands the build variables of every field, skipping fields that do not refer to any.
+     *
+     * @param env The build variables
+     * @return The notification to send
+     */
+    public ResolvedNotification resolve(EnvVars env) {
+        return resolve(env, expand(env, changelog, CHANGELOG));
+    }
+
+    /**
+     * Expands the build variables of every field and reads the {@link #getChangelogFile() changelog file}, if any,
+     * from the workspace.
+     *
+     * @param env The build variables
+     * @param workspace The workspace of the build, if it has one
+     * @param listener Where to report a missing, truncated or rejected changelog file
+     * @return The notification to send
+     */
+    public ResolvedNotification resolve(EnvVars env, @CheckForNull FilePath workspace, TaskListener listener)
+            throws IOException, InterruptedException {
+        if (Util.fixEmptyAndTrim(changelogFile) == null) {
+            return resolve(env);
+        }
+        String path = env.expand(changelogFile.trim());
+        if (workspace == null) {
+            listener.error("No workspace to read the changelog file %s from", path);
+            return resolve(env);
+        }
+        if (!workspace.isDescendant(path)) {
+            listener.error("Changelog file %s is not inside the workspace; use a path relative to the workspace", path);
+            return resolve(env);
+        }
+        FilePath file = workspace.child(path);
+        if (!file.exists()) {
+            listener.error("Changelog file %s not found", path);
+            return resolve(env);
+        }
+        int limit = NewRelicGlobalConfiguration.get().getChangelogFileLimit() * 1024;
+        return resolve(env, ChangelogFile.read(file, limit, listener));
+    }
+
+    private ResolvedNotification resolve(EnvVars env, String changelog) {
+        return new ResolvedNotification(
+                apiKey,
+                applicationId,
+                expand(env, description, DESCRIPTION),
+                expand(env, revision, REVISION),
+                changelog,
+                expand(env, commit, COMMIT),
+                expand(env, deeplink, DEEPLINK),
+                expand(env, user, USER),
+                expand(env, entityGuid, ENTITY_GUID),
+                expand(env, deploymentType, DEPLOYMENT_TYPE),
+                expand(env, groupId, GROUP_ID),
+                expand(env, timestamp, TIMESTAMP),
+                expand(env, version, VERSION),
+                european);
     }
 
     public String getApiKey() {
@@ -116,6 +229,18 @@ public class DeploymentNotificationBean extends AbstractDescribableImpl<Deployme
         return user;
     }
 
+    /**
+     * @return Path of a workspace file holding the changelog, which replaces {@link #getChangelog()} when it exists
+     */
+    public String getChangelogFile() {
+        return changelogFile;
+    }
+
+    @DataBoundSetter
+    public void setChangelogFile(String changelogFile) {
+        this.changelogFile = Util.fixEmptyAndTrim(changelogFile);
+    }
+
     public String getCommit() { return commit; }
 
     public String getDeeplink() {
@@ -200,7 +325,7 @@ public class DeploymentNotificationBean extends AbstractDescribableImpl<Deployme
         return CredentialsMatchers.firstOrNull(credentials, matcher);
     }
 
-    private static List<StandardUsernamePasswordCredentials> availableCredentials(Job<?,?> owner, String source) {
+    static List<StandardUsernamePasswordCredentials> availableCredentials(Job<?,?> owner, String source) {
         return CredentialsProvider.lookupCredentials(StandardUsernamePasswordCredentials.class,
                 owner, null, URIRequirementBuilder.fromUri(source).build());
     }
@@ -208,6 +333,13 @@ public class DeploymentNotificationBean extends AbstractDescribableImpl<Deployme
     @Extension
     public static final class DescriptorImpl extends Descriptor<DeploymentNotificationBean> {
 
+        /**
+         * Maximum number of applications offered when the application list is filtered by name.
+         */
+        static final int MAX_APPLICATION_MATCHES = 50;
+
+        private final transient ApplicationCatalogCache applicationCache = new ApplicationCatalogCache();
+
         public ListBoxModel doFillApiKeyItems(@AncestorInPath Job<?,?> owner) {
             if (owner == null || !owner.hasPermission(Item.CONFIGURE)) {
                 return new ListBoxModel();
@@ -222,7 +354,8 @@ public class DeploymentNotificationBean extends AbstractDescribableImpl<Deployme
             return FormValidation.ok();
         }
 
-        public ListBoxModel doFillApplicationIdItems(@AncestorInPath Job<?, ?> owner, @QueryParameter("apiKey") final String apiKey, @QueryParameter("european") final Boolean european) throws IOException {
+        public ListBoxModel doFillApplicationIdItems(@AncestorInPath Job<?, ?> owner, @QueryParameter("apiKey") final String apiKey, @QueryParameter("european") final Boolean european,
+                                                     @QueryParameter("applicationFilter") final String applicationFilter, @QueryParameter("currentApplicationId") final String currentApplicationId) throws IOException {
             if (owner == null || !owner.hasPermission(Item.CONFIGURE)) {
                 return new ListBoxModel();
             }
@@ -232,8 +365,16 @@ public class DeploymentNotificationBean extends AbstractDescribableImpl<Deployme
                 UsernamePasswordCredentials credentials = getCredentials(owner, apiKey, client.getApiEndpoint());
                 if (credentials != null) {
                     List<Application> applications;
+                    String key = Secret.toString(credentials.getPassword());
+                    boolean eu = european != null && european;
+                    String filter = Util.fixEmptyAndTrim(applicationFilter);
                     try {
-                        applications = client.getApplications(Secret.toString(credentials.getPassword()), european);
+                        if (filter == null && !NewRelicGlobalConfiguration.get().isApplicationTypeahead()) {
+                            applications = applicationCache.get(apiKey, key, eu, () -> client.getApplications(key, eu));
+                        } else {
+                            applications = findApplications(client, apiKey, key, eu, filter);
+                            addCurrentApplication(items, applications, currentApplicationId, apiKey, key, eu);
+                        }
                     } catch (IOException e) {
                         if (e.getMessage().contains("401") || e.getMessage().contains("403")) {
                             items.add("Authentication/Authorization Error", "The API Key is either not recognized or not authorized. Please be sure to use a valid User API Key and confirm you have selected the correct region.");
@@ -250,6 +391,85 @@ public class DeploymentNotificationBean extends AbstractDescribableImpl<Deployme
             return items;
         }
 
+        /**
+         * Finds the applications whose name contains the filter, using the cached application list when there
+         * is one and asking New Relic to filter by name otherwise. Names starting with the filter come first.
+         */
+        private List<Application> findApplications(NewRelicClient client, String credentialId, String key, boolean european, String filter) throws IOException {
+            if (filter == null) {
+                return List.of();
+            }
+            List<Application> candidates = applicationCache.peek(credentialId, key, european);
+            if (candidates == null) {
+                candidates = client.getApplications(key, european, filter);
+            }
+            String needle = filter.toLowerCase(Locale.ENGLISH);
+            List<Application> prefixMatches = new ArrayList<>();
+            List<Application> otherMatches = new ArrayList<>();
+            for (Application application : candidates) {
+                String name = application.getName() == null ? "" : application.getName().toLowerCase(Locale.ENGLISH);
+                if (name.startsWith(needle)) {
+                    prefixMatches.add(application);
+                    if (prefixMatches.size() == MAX_APPLICATION_MATCHES) {
+                        break;
+                    }
+                } else if (name.contains(needle) && otherMatches.size() < MAX_APPLICATION_MATCHES) {
+                    otherMatches.add(application);
+                }
+            }
+            prefixMatches.addAll(otherMatches);
+            return prefixMatches.size() > MAX_APPLICATION_MATCHES ? prefixMatches.subList(0, MAX_APPLICATION_MATCHES) : prefixMatches;
+        }
+
+        /**
+         * Keeps the configured application selectable when it is not among the matches, so saving the job
+         * without picking another application does not change it.
+         */
+        private void addCurrentApplication(ListBoxModel items, List<Application> matches, String currentApplicationId, String credentialId, String key, boolean european) {
+            String current = Util.fixEmptyAndTrim(currentApplicationId);
+            if (current == null) {
+                return;
+            }
+            for (Application application : matches) {
+                if (current.equals(application.getId())) {
+                    return;
+                }
+            }
+            String name = current;
+            List<Application> cached = applicationCache.peek(credentialId, key, european);
+            if (cached != null) {
+                for (Application application : cached) {
+                    if (current.equals(application.getId())) {
+                        name = application.getName();
+                        break;
+                    }
+                }
+            }
+            items.add(name, current);
+        }
+
+        @RequirePOST
+        public FormValidation doRefreshApplications(@AncestorInPath Job<?, ?> owner, @QueryParameter("apiKey") final String apiKey, @QueryParameter("european") final boolean european) {
+            if (owner == null || !owner.hasPermission(Item.CONFIGURE)) {
+                return FormValidation.ok();
+            }
+            if (apiKey == null || apiKey.isEmpty()) {
+                return FormValidation.error("Missing API Key");
+            }
+            NewRelicClient client = getClient();
+            UsernamePasswordCredentials credentials = getCredentials(owner, apiKey, client.getApiEndpoint());
+            if (credentials == null) {
+                return FormValidation.error("Invalid credentials");
+            }
+            String key = Secret.toString(credentials.getPassword());
+            try {
+                List<Application> applications = applicationCache.reload(apiKey, key, european, () -> client.getApplications(key, european));
+                return FormValidation.ok("Loaded %d applications. Reload the page to update the application list.", applications.size());
+            } catch (IOException e) {
+                return FormValidation.error(e, "Failed to load applications");
+            }
+        }
+
         public FormValidation doCheckApplicationId(@QueryParameter("applicationId") String applicationId) {
             if (applicationId == null || applicationId.isEmpty()) {
                 return FormValidation.error("No applications!");
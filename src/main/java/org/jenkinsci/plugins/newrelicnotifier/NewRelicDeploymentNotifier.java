@@ -23,34 +23,82 @@
  */
 package org.jenkinsci.plugins.newrelicnotifier;
 
-import com.cloudbees.plugins.credentials.common.UsernamePasswordCredentials;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.*;
+import hudson.remoting.VirtualChannel;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.BuildStepMonitor;
 import hudson.tasks.Notifier;
 import hudson.tasks.Publisher;
-import hudson.util.Secret;
+import hudson.util.StreamTaskListener;
 import jenkins.tasks.SimpleBuildStep;
+import jenkins.util.SystemProperties;
+import org.jenkinsci.plugins.newrelicnotifier.api.AgentNewRelicClient;
+import org.jenkinsci.plugins.newrelicnotifier.api.CoalescingNewRelicClient;
+import org.jenkinsci.plugins.newrelicnotifier.api.DeliveryTrace;
+import org.jenkinsci.plugins.newrelicnotifier.api.Deployment;
+import org.jenkinsci.plugins.newrelicnotifier.api.DispatchExecutor;
+import org.jenkinsci.plugins.newrelicnotifier.api.DeploymentResult;
 import org.jenkinsci.plugins.newrelicnotifier.api.NewRelicClient;
 import org.jenkinsci.plugins.newrelicnotifier.api.NewRelicClientImpl;
+import org.jenkinsci.plugins.newrelicnotifier.api.Timeouts;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
-import hudson.Util;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Notifies a New Relic instance about deployment.
  */
 public class NewRelicDeploymentNotifier extends Notifier implements SimpleBuildStep {
 
+    /**
+     * Maximum number of notifications sent concurrently, shared by all builds on this controller.
+     */
+    public static final int DISPATCH_THREADS =
+            SystemProperties.getInteger(NewRelicDeploymentNotifier.class.getName() + ".dispatchThreads", 8);
+
+    private static final Logger LOGGER = Logger.getLogger(NewRelicDeploymentNotifier.class.getName());
+
+    private static final DispatchExecutor DISPATCHER =
+            DispatchExecutor.create("NewRelicDeploymentNotifier.dispatcher", DISPATCH_THREADS);
+
+    /**
+     * What happens to the build when its notifications do not complete within the {@link #getDeadline() deadline}.
+     */
+    public enum DeadlineResult {
+        FAILURE,
+        UNSTABLE
+    }
+
     private final List<DeploymentNotificationBean> notifications;
 
+    private boolean async;
+    private boolean runOnAgent;
+    private int connectTimeout;
+    private int readTimeout;
+    private int leaseTimeout;
+    private int deadline;
+    private DeadlineResult deadlineResult;
+
     @DataBoundConstructor
     public NewRelicDeploymentNotifier(List<DeploymentNotificationBean> notifications) {
         super();
@@ -61,10 +109,99 @@ public class NewRelicDeploymentNotifier extends Notifier implements SimpleBuildS
         return notifications;
     }
 
+    /**
+     * @return Whether notifications are queued and delivered in the background instead of by the build
+     */
+    public boolean isAsync() {
+        return async;
+    }
+
+    @DataBoundSetter
+    public void setAsync(boolean async) {
+        this.async = async;
+    }
+
+    /**
+     * @return Whether notifications delivered by the build are sent from the agent running it instead of the
+     * controller
+     */
+    public boolean isRunOnAgent() {
+        return runOnAgent;
+    }
+
+    @DataBoundSetter
+    public void setRunOnAgent(boolean runOnAgent) {
+        this.runOnAgent = runOnAgent;
+    }
+
+    /**
+     * @return Seconds allowed to connect to New Relic, or {@code 0} for the global setting
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    @DataBoundSetter
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = Math.max(0, connectTimeout);
+    }
+
+    /**
+     * @return Seconds New Relic may stay silent, or {@code 0} for the global setting
+     */
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    @DataBoundSetter
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = Math.max(0, readTimeout);
+    }
+
+    /**
+     * @return Seconds to wait for a pooled connection, or {@code 0} for the global setting
+     */
+    public int getLeaseTimeout() {
+        return leaseTimeout;
+    }
+
+    @DataBoundSetter
+    public void setLeaseTimeout(int leaseTimeout) {
+        this.leaseTimeout = Math.max(0, leaseTimeout);
+    }
+
+    /**
+     * @return Seconds every notification of a build, including retries, must complete in, counted from the start of
+     * the step, or {@code 0} for no limit
+     */
+    public int getDeadline() {
+        return deadline;
+    }
+
+    @DataBoundSetter
+    public void setDeadline(int deadline) {
+        this.deadline = Math.max(0, deadline);
+    }
+
+    @NonNull
+    public DeadlineResult getDeadlineResult() {
+        return deadlineResult != null ? deadlineResult : DeadlineResult.FAILURE;
+    }
+
+    @DataBoundSetter
+    public void setDeadlineResult(DeadlineResult deadlineResult) {
+        this.deadlineResult = deadlineResult;
+    }
+
+    /**
+     * @return The number of notification groups waiting for or running on a dispatcher thread
+     */
+    static int getDispatchQueueDepth() {
+        return DISPATCHER.getQueueDepth();
+    }
+
     @Override
     public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
-        boolean result = true;
-
         if (build.getResult() == Result.FAILURE ||
             build.getResult() == Result.ABORTED) {
             listener.error("Build unsuccessful. Skipping New Relic Deployment notification.");
@@ -76,52 +213,442 @@ public class NewRelicDeploymentNotifier extends Notifier implements SimpleBuildS
             return false;
         }
 
+        long started = System.nanoTime();
         EnvVars envVars = build.getEnvironment(listener);
         envVars.overrideAll(build.getBuildVariables());
 
-        NewRelicClient client = getClient();
+        NewRelicClient client = coalesce(getClient(build.getWorkspace(), listener));
 
-        for (DeploymentNotificationBean n : getNotifications()) {
-            UsernamePasswordCredentials credentials = DeploymentNotificationBean.getCredentials(build.getProject(), n.getApiKey(), client.getApiEndpoint(n.getEuropean()));
-            if (credentials == null) {
-                listener.error("Invalid credentials for Application ID: %s", n.getApplicationId());
-                result = false;
+        List<PendingNotification> pending = new ArrayList<>();
+        List<NotificationGroup> groups = new ArrayList<>();
+        Map<List<Object>, List<PendingNotification>> batches = new LinkedHashMap<>();
+        ApiKeyCache apiKeys = new ApiKeyCache(build.getProject());
+        for (DeploymentNotificationBean bean : getNotifications()) {
+            long start = System.nanoTime();
+            ResolvedNotification n = bean.resolve(envVars, build.getWorkspace(), listener);
+            ApiKeyCache.ApiKey apiKey = apiKeys.get(n.getCredentialsId(), client.getApiEndpoint(n.isEuropean()));
+            PendingNotification p = new PendingNotification(n, apiKey, build.getFullDisplayName());
+            p.timing.resolved(System.nanoTime() - start);
+            pending.add(p);
+            if (apiKey == null) {
+                p.listener.error("Invalid credentials for Application ID: %s", n.getApplicationId());
+            } else if (!n.isChangeTracking()) {
+                groups.add(new NotificationGroup(List.of(p),
+                        group -> sendNotification(client, p),
+                        group -> saveForRetry(p)));
             } else {
-                try {
-                    if(Util.fixEmpty(n.getEntityGuid(envVars)) == null) {
-                        client.sendNotification(Secret.toString(credentials.getPassword()),
-                                n.getApplicationId(),
-                                n.getDescription(envVars),
-                                n.getRevision(envVars),
-                                n.getChangelog(envVars),
-                                n.getUser(envVars),
-                                n.getEuropean(envVars));
-                        listener.getLogger().println("Notified New Relic. Application ID: " + n.getApplicationId());
-                    } else {
-                        client.sendNotificationV2(Secret.toString(credentials.getPassword()),
-                                n.getChangelog(envVars),
-                                n.getCommit(envVars),
-                                n.getDeeplink(envVars),
-                                n.getDeploymentType(envVars),
-                                n.getDescription(envVars),
-                                n.getEntityGuid(envVars),
-                                n.getGroupId(envVars),
-                                n.getTimestamp(envVars),
-                                n.getUser(envVars),
-                                n.getVersion(envVars),
-                                n.getEuropean(envVars),
-                                listener);
+                batches.computeIfAbsent(batchKey(p), k -> new ArrayList<>()).add(p);
+            }
+        }
+        addBatches(client, batches, groups);
+        return deliver(build, pending, groups, listener, started);
+    }
+
+    private static void addBatches(NewRelicClient client, Map<List<Object>, List<PendingNotification>> batches,
+                                   List<NotificationGroup> groups) {
+        for (List<PendingNotification> batch : batches.values()) {
+            groups.add(new NotificationGroup(batch,
+                    group -> sendNotificationsV2(client, group),
+                    group -> group.forEach(p -> saveForRetry(p, p.notification.toDeployment()))));
+        }
+    }
+
+    private static void sendNotification(NewRelicClient client, PendingNotification p) {
+        ResolvedNotification n = p.notification;
+        try {
+            client.sendNotification(p.apiKey.getPlainText(),
+                    n.getApplicationId(),
+                    n.getDescription(),
+                    n.getRevision(),
+                    n.getChangelog(),
+                    n.getUser(),
+                    n.isEuropean());
+            p.listener.getLogger().println("Notified New Relic. Application ID: " + n.getApplicationId());
+            p.success = true;
+        } catch (IOException e) {
+            p.listener.error("Failed to notify New Relic. Application ID: %s", n.getApplicationId());
+            e.printStackTrace(p.listener.getLogger());
+            if (NotificationOutbox.isRetryable(e)) {
+                saveForRetry(p);
+            }
+        }
+    }
+
+    /**
+     * Sends change tracking notifications that share an API key and region, as a single batched
+     * NerdGraph request when there is more than one.
+     */
+    private static void sendNotificationsV2(NewRelicClient client, List<PendingNotification> batch) {
+        PendingNotification first = batch.get(0);
+        String apiKey = first.apiKey.getPlainText();
+        boolean european = first.notification.isEuropean();
+        try {
+            if (batch.size() == 1) {
+                ResolvedNotification n = first.notification;
+                client.sendNotificationV2(apiKey,
+                        n.getChangelog(),
+                        n.getCommit(),
+                        n.getDeeplink(),
+                        n.getDeploymentType(),
+                        n.getDescription(),
+                        n.getEntityGuid(),
+                        n.getGroupId(),
+                        n.getTimestamp(),
+                        n.getUser(),
+                        n.getVersion(),
+                        european,
+                        first.listener);
+                first.success = true;
+                return;
+            }
+
+            List<Deployment> deployments = new ArrayList<>(batch.size());
+            for (PendingNotification p : batch) {
+                deployments.add(p.notification.toDeployment());
+            }
+            List<DeploymentResult> results = client.sendNotificationsV2(apiKey, deployments, european, first.listener);
+            for (int i = 0; i < batch.size(); i++) {
+                PendingNotification p = batch.get(i);
+                DeploymentResult result = results.get(i);
+                if (result.isSuccess()) {
+                    p.listener.getLogger().println("Notified New Relic. New Relic Deployment ID: " + result.getDeploymentId());
+                    p.deploymentId = result.getDeploymentId();
+                    p.success = true;
+                } else if (result.getError() == null) {
+                    p.listener.getLogger().println("Unable to reach New Relic to record the Deployment Id");
+                    p.success = true;
+                } else {
+                    p.listener.error("Failed to notify New Relic. Entity GUID: %s", result.getEntityGuid());
+                    p.listener.getLogger().println(result.getError());
+                }
+            }
+        } catch (IOException e) {
+            for (PendingNotification p : batch) {
+                p.listener.error("Failed to notify New Relic. Entity GUID: %s", p.notification.getEntityGuid());
+                e.printStackTrace(p.listener.getLogger());
+                if (NotificationOutbox.isRetryable(e)) {
+                    saveForRetry(p, p.notification.toDeployment());
+                }
+            }
+        }
+    }
+
+    /**
+     * Saves a REST API notification to the outbox so it is delivered once New Relic can be reached.
+     */
+    private static void saveForRetry(PendingNotification p) {
+        ResolvedNotification n = p.notification;
+        saveForRetry(p, NotificationOutbox.Entry.forApplication(p.apiKey.getSecret(),
+                n.isEuropean(),
+                p.source,
+                n.getApplicationId(),
+                n.getDescription(),
+                n.getRevision(),
+                n.getChangelog(),
+                n.getUser()));
+    }
+
+    /**
+     * Saves a change tracking notification to the outbox so it is delivered once New Relic can be reached.
+     */
+    private static void saveForRetry(PendingNotification p, Deployment deployment) {
+        saveForRetry(p, NotificationOutbox.Entry.forEntity(p.apiKey.getSecret(),
+                p.notification.isEuropean(), p.source, deployment));
+    }
+
+    private static void saveForRetry(PendingNotification p, NotificationOutbox.Entry entry) {
+        try {
+            NotificationOutbox.get().add(entry);
+            p.saved = true;
+            p.listener.getLogger().println("The notification was saved and will be sent again once New Relic can be reached.");
+        } catch (IOException e) {
+            p.listener.error("Failed to save the notification for a later retry");
+            e.printStackTrace(p.listener.getLogger());
+        }
+    }
+
+    /**
+     * @return A client sending notifications from the agent holding the workspace if {@link #isRunOnAgent()} applies,
+     * otherwise {@link #getClient()}
+     */
+    private NewRelicClient getClient(FilePath workspace, TaskListener listener) {
+        NewRelicClient client = getClient();
+        if (!runOnAgent || async) {
+            return client;
+        }
+        VirtualChannel channel = workspace != null ? workspace.getChannel() : null;
+        if (channel == null) {
+            listener.getLogger().println("No workspace available. Notifying New Relic from the controller.");
+            return client;
+        }
+        return workspace.isRemote() ? new AgentNewRelicClient(channel, client) : client;
+    }
+
+    /**
+     * Lets identical notifications from concurrent or re-run builds share one marker.
+     */
+    private static NewRelicClient coalesce(NewRelicClient client) {
+        return new CoalescingNewRelicClient(client, NewRelicGlobalConfiguration.get().getCoalesceWindow());
+    }
+
+    private static List<Object> batchKey(PendingNotification p) {
+        return Arrays.asList(p.apiKey.getPlainText(), p.notification.isEuropean());
+    }
+
+    /**
+     * Delivers the notification groups, either waiting for them and copying their log output to the build log,
+     * or, in asynchronous mode, queueing them. Either way their outcome is recorded on the run once delivered.
+     *
+     * @param started When the step started, from {@link System#nanoTime()}, to count the deadline from
+     * @return {@code true} if every notification succeeded or was queued
+     */
+    private boolean deliver(Run<?, ?> run, List<PendingNotification> pending, List<NotificationGroup> groups,
+                            TaskListener listener, long started) throws InterruptedException, IOException {
+        Timeouts timeouts = new Timeouts(connectTimeout, readTimeout, leaseTimeout);
+        Long deadlineAt = deadline > 0 ? started + TimeUnit.SECONDS.toNanos(deadline) : null;
+        for (NotificationGroup group : groups) {
+            group.timeouts = timeouts;
+            group.deadline = deadlineAt;
+            group.members.forEach(p -> p.timing.queued());
+        }
+        if (!isAsync()) {
+            for (NotificationGroup group : groups) {
+                Future<?> future = DISPATCHER.submit(group);
+                for (PendingNotification p : group.members) {
+                    p.group = group;
+                    p.future = future;
+                }
+            }
+            boolean result = report(pending, listener, deadlineAt);
+            addOutcomes(run, pending);
+            return result || checkDeadline(run, pending, listener);
+        }
+
+        for (PendingNotification p : pending) {
+            if (p.apiKey == null) {
+                listener.getLogger().write(p.log.toByteArray());
+            }
+        }
+        DeploymentDispatcher.get().dispatch(groups, () -> recordOutcomes(run, pending));
+        listener.getLogger().println("Queued New Relic deployment notifications. Their outcome will be shown on the build page.");
+        return true;
+    }
+
+    /**
+     * Applies the {@link #getDeadlineResult() deadline result} when notifications failed because they ran out of
+     * time.
+     *
+     * @return {@code true} if the build may go on, i.e. every failed notification ran out of time and the build is
+     * only marked unstable
+     */
+    private boolean checkDeadline(Run<?, ?> run, List<PendingNotification> pending, TaskListener listener) {
+        int expired = 0;
+        boolean otherFailures = false;
+        for (PendingNotification p : pending) {
+            if (p.expired) {
+                expired++;
+            } else if (!p.success) {
+                otherFailures = true;
+            }
+        }
+        if (expired == 0) {
+            return false;
+        }
+        listener.error("%d New Relic notifications did not complete within %d seconds", expired, deadline);
+        if (getDeadlineResult() == DeadlineResult.UNSTABLE) {
+            run.setResult(Result.UNSTABLE);
+            return !otherFailures;
+        }
+        run.setResult(Result.FAILURE);
+        return false;
+    }
+
+    /**
+     * Waits for the dispatched notifications and copies their log output to the build log in the configured order.
+     * Notifications still running at the deadline are cancelled.
+     *
+     * @param pending The notifications, in the order they are configured
+     * @param listener The build listener
+     * @param deadline {@link System#nanoTime()} after which notifications are cancelled, or {@code null}
+     * @return {@code true} if every notification succeeded
+     */
+    private static boolean report(List<PendingNotification> pending, TaskListener listener, Long deadline)
+            throws InterruptedException, IOException {
+        boolean result = true;
+        try {
+            for (PendingNotification p : pending) {
+                if (p.future != null) {
+                    try {
+                        if (deadline == null) {
+                            p.future.get();
+                        } else {
+                            p.future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                        }
+                    } catch (ExecutionException e) {
+                        // NotificationGroup already logged the failure to the notification's own buffer
+                        p.success = false;
+                    } catch (TimeoutException e) {
+                        for (PendingNotification running : pending) {
+                            if (running.group != null && !running.future.isDone()) {
+                                running.group.cancel();
+                                running.future.cancel(true);
+                                running.expired = true;
+                            }
+                        }
+                    } catch (CancellationException e) {
+                        p.success = false;
                     }
-                } catch (IOException e) {
-                    listener.error("Failed to notify New Relic. Application ID: %s", n.getApplicationId());
-                    e.printStackTrace(listener.getLogger());
-                    result = false;
+                }
+                listener.getLogger().write(p.log.toByteArray());
+                listener.getLogger().flush();
+                result &= p.success;
+            }
+        } finally {
+            for (PendingNotification p : pending) {
+                if (p.future != null) {
+                    p.future.cancel(true);
                 }
             }
         }
         return result;
     }
 
+    private static void addOutcomes(Run<?, ?> run, List<PendingNotification> pending) {
+        DeploymentNotificationAction action = DeploymentNotificationAction.of(run);
+        for (PendingNotification p : pending) {
+            action.add(new DeploymentNotificationAction.Outcome(p.target, p.getStatus(), p.deploymentId,
+                    p.log.toString(StandardCharsets.UTF_8).trim(), p.timing));
+        }
+    }
+
+    private static void recordOutcomes(Run<?, ?> run, List<PendingNotification> pending) {
+        addOutcomes(run, pending);
+        try {
+            run.save();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save New Relic notification outcome for " + run, e);
+        }
+    }
+
+    /**
+     * Work for a group of notifications, run on the dispatcher.
+     */
+    @FunctionalInterface
+    private interface NotificationTask {
+        void run(List<PendingNotification> group);
+    }
+
+    /**
+     * Notifications sent together, either one notification or a batch sharing an API key and region.
+     */
+    private static final class NotificationGroup implements DeploymentDispatcher.Delivery {
+        private final List<PendingNotification> members;
+        private final NotificationTask task;
+        private final NotificationTask onDiscard;
+        private Timeouts timeouts = Timeouts.DEFAULT;
+        private Long deadline;
+        private volatile DeliveryTrace trace;
+        private volatile boolean cancelled;
+
+        NotificationGroup(List<PendingNotification> members, NotificationTask task, NotificationTask onDiscard) {
+            this.members = members;
+            this.task = task;
+            this.onDiscard = onDiscard;
+        }
+
+        @Override
+        public void run() {
+            members.forEach(p -> p.timing.started());
+            try (DeliveryTrace trace = DeliveryTrace.start()) {
+                if (deadline != null) {
+                    trace.limit(timeouts, deadline);
+                } else {
+                    trace.limit(timeouts);
+                }
+                this.trace = trace;
+                if (cancelled) {
+                    trace.cancel();
+                }
+                try {
+                    task.run(members);
+                } catch (RuntimeException e) {
+                    for (PendingNotification p : members) {
+                        p.success = false;
+                        p.listener.error("Failed to notify New Relic");
+                        e.printStackTrace(p.listener.getLogger());
+                    }
+                } finally {
+                    boolean late = deadline != null && System.nanoTime() - deadline >= 0;
+                    for (PendingNotification p : members) {
+                        p.timing.delivered(trace);
+                        p.expired |= late && !p.success;
+                    }
+                    if (members.size() == 1 && members.get(0).deploymentId == null) {
+                        members.get(0).deploymentId = trace.getDeploymentId();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Aborts the request in progress and fails the notifications of this group that were not sent yet.
+         */
+        void cancel() {
+            cancelled = true;
+            DeliveryTrace running = trace;
+            if (running != null) {
+                running.cancel();
+            }
+        }
+
+        @Override
+        public void discarded(String reason) {
+            for (PendingNotification p : members) {
+                p.success = false;
+                p.discarded = true;
+                p.listener.error("Notification discarded: %s", reason);
+            }
+            onDiscard.run(members);
+        }
+    }
+
+    /**
+     * A configured notification being dispatched, with its own log buffer and outcome.
+     */
+    private static final class PendingNotification {
+        private final ResolvedNotification notification;
+        private final String target;
+        private final ApiKeyCache.ApiKey apiKey;
+        private final String source;
+        private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+        private final TaskListener listener = new StreamTaskListener(log, StandardCharsets.UTF_8);
+        private final DeploymentNotificationAction.Timing timing = new DeploymentNotificationAction.Timing();
+        private volatile boolean success;
+        private String deploymentId;
+        private boolean saved;
+        private boolean discarded;
+        private volatile boolean expired;
+        private NotificationGroup group;
+        private Future<?> future;
+
+        PendingNotification(ResolvedNotification notification, ApiKeyCache.ApiKey apiKey, String source) {
+            this.notification = notification;
+            this.target = notification.getTarget();
+            this.apiKey = apiKey;
+            this.source = source;
+        }
+
+        DeploymentNotificationAction.Status getStatus() {
+            if (success) {
+                return DeploymentNotificationAction.Status.DELIVERED;
+            }
+            if (discarded) {
+                return DeploymentNotificationAction.Status.DISCARDED;
+            }
+            return saved ? DeploymentNotificationAction.Status.SAVED : DeploymentNotificationAction.Status.FAILED;
+        }
+    }
+
     // help testing
     public NewRelicClient getClient() {
         return new NewRelicClientImpl();
@@ -139,33 +666,28 @@ public class NewRelicDeploymentNotifier extends Notifier implements SimpleBuildS
 
     @Override
     public void perform(@NonNull Run<?, ?> run, @NonNull FilePath filePath, @NonNull Launcher launcher, @NonNull TaskListener taskListener) throws InterruptedException, IOException {
+        long started = System.nanoTime();
         EnvVars envVars = run.getEnvironment(taskListener);
-        NewRelicClient client = getClient();
-        for (DeploymentNotificationBean n : getNotifications()) {
-            UsernamePasswordCredentials credentials = DeploymentNotificationBean.getCredentials(run.getParent(), n.getApiKey(), client.getApiEndpoint(n.getEuropean(envVars)));
-            if (credentials == null) {
-                taskListener.error("Invalid credentials for Entity GUID: %s", n.getEntityGuid(envVars));
-                continue;
-            }
-            try {
-                client.sendNotificationV2(Secret.toString(credentials.getPassword()),
-                        n.getChangelog(envVars),
-                        n.getCommit(envVars),
-                        n.getDeeplink(envVars),
-                        n.getDeploymentType(envVars),
-                        n.getDescription(envVars),
-                        n.getEntityGuid(envVars),
-                        n.getGroupId(envVars),
-                        n.getTimestamp(envVars),
-                        n.getUser(envVars),
-                        n.getVersion(envVars),
-                        n.getEuropean(envVars),
-                        taskListener);
-            } catch (IOException e) {
-                taskListener.error("Failed to notify New Relic. Entity GUID: %s", n.getEntityGuid(envVars));
-                e.printStackTrace(taskListener.getLogger());
+        NewRelicClient client = coalesce(getClient(filePath, taskListener));
+        List<PendingNotification> pending = new ArrayList<>();
+        List<NotificationGroup> groups = new ArrayList<>();
+        Map<List<Object>, List<PendingNotification>> batches = new LinkedHashMap<>();
+        ApiKeyCache apiKeys = new ApiKeyCache(run.getParent());
+        for (DeploymentNotificationBean bean : getNotifications()) {
+            long start = System.nanoTime();
+            ResolvedNotification n = bean.resolve(envVars, filePath, taskListener);
+            ApiKeyCache.ApiKey apiKey = apiKeys.get(n.getCredentialsId(), client.getApiEndpoint(n.isEuropean()));
+            PendingNotification p = new PendingNotification(n, apiKey, run.getFullDisplayName());
+            p.timing.resolved(System.nanoTime() - start);
+            pending.add(p);
+            if (apiKey == null) {
+                p.listener.error("Invalid credentials for Entity GUID: %s", n.getEntityGuid());
+            } else {
+                batches.computeIfAbsent(batchKey(p), k -> new ArrayList<>()).add(p);
             }
         }
+        addBatches(client, batches, groups);
+        deliver(run, pending, groups, taskListener, started);
     }
 
     @Extension
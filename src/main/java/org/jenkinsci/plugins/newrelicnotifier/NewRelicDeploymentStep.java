@@ -0,0 +1,519 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import org.jenkinsci.plugins.newrelicnotifier.api.CoalescingNewRelicClient;
+import org.jenkinsci.plugins.newrelicnotifier.api.DeliveryTrace;
+import org.jenkinsci.plugins.newrelicnotifier.api.Deployment;
+import org.jenkinsci.plugins.newrelicnotifier.api.DeploymentResult;
+import org.jenkinsci.plugins.newrelicnotifier.api.NewRelicClient;
+import org.jenkinsci.plugins.newrelicnotifier.api.NewRelicClientImpl;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pipeline step recording change tracking deployments in New Relic.
+ * <p>
+ * The notifications are prepared in the background, including reading changelog files from the workspace, and
+ * delivered by the {@link DeploymentDispatcher} queue, so the step holds neither an executor nor the Pipeline thread
+ * while waiting for the agent or New Relic. It returns the deployment IDs, in the order the notifications
+ * are configured, with {@code null} for deployments New Relic did not return an ID for. With {@code wait: false}
+ * the step returns as soon as the notifications are queued and their outcome is shown on the build page.
+ */
+public class NewRelicDeploymentStep extends Step {
+
+    private final List<DeploymentNotificationBean> notifications;
+
+    private boolean wait = true;
+
+    @DataBoundConstructor
+    public NewRelicDeploymentStep(List<DeploymentNotificationBean> notifications) {
+        this.notifications = notifications;
+    }
+
+    public List<DeploymentNotificationBean> getNotifications() {
+        return notifications;
+    }
+
+    /**
+     * @return Whether the step waits for New Relic and returns the deployment IDs
+     */
+    public boolean isWait() {
+        return wait;
+    }
+
+    @DataBoundSetter
+    public void setWait(boolean wait) {
+        this.wait = wait;
+    }
+
+    // help testing
+    public NewRelicClient getClient() {
+        return new NewRelicClientImpl();
+    }
+
+    @Override
+    public StepExecution start(StepContext context) throws Exception {
+        if (notifications == null || notifications.isEmpty()) {
+            throw new AbortException("Missing notifications!");
+        }
+        return new Execution(context, notifications, context.get(EnvVars.class), context.get(FilePath.class), wait,
+                getClient());
+    }
+
+    /**
+     * Prepares and delivers the notifications in the background and completes the step once they are delivered.
+     * <p>
+     * Each undelivered notification has a single owner. Notifications that failed and may succeed later are saved to
+     * the {@link NotificationOutbox}, which delivers them, and the step fails. Notifications not sent yet when Jenkins
+     * shuts down stay with the step, which sends them when it resumes; which ones were sent is saved with the
+     * Pipeline after every batch. Stopping the step cancels its queued and running batches.
+     */
+    static final class Execution extends StepExecution {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final Logger LOGGER = Logger.getLogger(Execution.class.getName());
+
+        private final transient List<DeploymentNotificationBean> configured;
+        private final transient EnvVars envVars;
+        private final transient FilePath workspace;
+        /** The notifications to send, once prepared. */
+        private List<ResolvedNotification> notifications;
+        private final boolean wait;
+        private final String[] deploymentIds;
+        private final boolean[] delivered;
+        private final boolean[] failed;
+        private final boolean[] saved;
+        private final boolean[] discarded;
+        private final DeploymentNotificationAction.Timing[] timings;
+        private boolean done;
+
+        private transient NewRelicClient client;
+        /** The batches queued by the last dispatch. */
+        private transient List<Batch> batches;
+        /** Whether batches were left to be sent after a restart. */
+        private transient boolean suspended;
+
+        Execution(StepContext context, List<DeploymentNotificationBean> configured, EnvVars envVars,
+                  FilePath workspace, boolean wait, NewRelicClient client) {
+            super(context);
+            this.configured = configured;
+            this.envVars = envVars;
+            this.workspace = workspace;
+            this.wait = wait;
+            int size = configured.size();
+            this.timings = new DeploymentNotificationAction.Timing[size];
+            for (int i = 0; i < size; i++) {
+                timings[i] = new DeploymentNotificationAction.Timing();
+            }
+            this.deploymentIds = new String[size];
+            this.delivered = new boolean[size];
+            this.failed = new boolean[size];
+            this.saved = new boolean[size];
+            this.discarded = new boolean[size];
+            this.client = client;
+        }
+
+        @Override
+        public boolean start() {
+            Computer.threadPoolForRemoting.execute(() -> {
+                try {
+                    TaskListener listener = getContext().get(TaskListener.class);
+                    prepare(listener);
+                    saveProgress();
+                    dispatch();
+                    if (!wait) {
+                        listener.getLogger().println("Queued New Relic deployment notifications. "
+                                + "Their outcome will be shown on the build page.");
+                        getContext().onSuccess(null);
+                    }
+                } catch (IOException | InterruptedException | RuntimeException e) {
+                    getContext().onFailure(e);
+                }
+            });
+            return false;
+        }
+
+        @Override
+        public void onResume() {
+            if (!wait || isDone()) {
+                return;
+            }
+            if (getNotifications() == null) {
+                getContext().onFailure(new AbortException(
+                        "Jenkins restarted before the New Relic deployment notifications were prepared"));
+                return;
+            }
+            Computer.threadPoolForRemoting.execute(() -> {
+                try {
+                    getContext().get(TaskListener.class).getLogger()
+                            .println("Resuming undelivered New Relic deployment notifications");
+                    dispatch();
+                } catch (IOException | InterruptedException | RuntimeException e) {
+                    getContext().onFailure(e);
+                }
+            });
+        }
+
+        @Override
+        public void stop(@NonNull Throwable cause) throws Exception {
+            List<Batch> queued;
+            synchronized (this) {
+                done = true;
+                queued = batches;
+            }
+            if (queued != null) {
+                for (Batch batch : queued) {
+                    batch.cancel();
+                }
+            }
+            getContext().onFailure(cause);
+        }
+
+        @Override
+        public String getStatus() {
+            synchronized (this) {
+                if (notifications == null) {
+                    return "preparing New Relic deployment notifications";
+                }
+                int pending = 0;
+                for (int i = 0; i < delivered.length; i++) {
+                    if (!delivered[i] && !failed[i]) {
+                        pending++;
+                    }
+                }
+                return "waiting for " + pending + " New Relic deployment notifications";
+            }
+        }
+
+        private synchronized boolean isDone() {
+            return done;
+        }
+
+        private synchronized List<ResolvedNotification> getNotifications() {
+            return notifications;
+        }
+
+        /**
+         * Serializes the step under its lock, as batches update it from other threads.
+         */
+        private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+            out.defaultWriteObject();
+        }
+
+        /**
+         * Saves the step with the Pipeline, so that a restart only sends the notifications that were not sent yet.
+         */
+        private void saveProgress() {
+            if (wait && !isDone()) {
+                getContext().saveState();
+            }
+        }
+
+        /**
+         * Expands the build variables of the notifications and reads their changelog files.
+         */
+        private void prepare(TaskListener listener) throws IOException, InterruptedException {
+            List<ResolvedNotification> resolved = new ArrayList<>(configured.size());
+            for (int i = 0; i < configured.size(); i++) {
+                long start = System.nanoTime();
+                resolved.add(configured.get(i).resolve(envVars, workspace, listener));
+                timings[i].resolved(System.nanoTime() - start);
+            }
+            synchronized (this) {
+                notifications = resolved;
+            }
+        }
+
+        /**
+         * Queues the notifications that have not been delivered yet, batched by API key and region.
+         */
+        private void dispatch() throws IOException, InterruptedException {
+            Run<?, ?> run = getContext().get(Run.class);
+            TaskListener listener = getContext().get(TaskListener.class);
+            if (client == null) {
+                client = new NewRelicClientImpl();
+            }
+            NewRelicClient coalescing = new CoalescingNewRelicClient(client,
+                    NewRelicGlobalConfiguration.get().getCoalesceWindow());
+
+            ApiKeyCache apiKeys = new ApiKeyCache(run.getParent());
+            Map<List<Object>, List<Integer>> batches = new LinkedHashMap<>();
+            Map<List<Object>, ApiKeyCache.ApiKey> batchKeys = new LinkedHashMap<>();
+            synchronized (this) {
+                for (int i = 0; i < notifications.size(); i++) {
+                    if (delivered[i] || failed[i]) {
+                        continue;
+                    }
+                    ResolvedNotification n = notifications.get(i);
+                    long start = System.nanoTime();
+                    ApiKeyCache.ApiKey apiKey = apiKeys.get(n.getCredentialsId(), client.getApiEndpoint(n.isEuropean()));
+                    timings[i].resolved(System.nanoTime() - start);
+                    if (apiKey == null) {
+                        listener.error("Invalid credentials for Entity GUID: %s", n.getEntityGuid());
+                        failed[i] = true;
+                        continue;
+                    }
+                    List<Object> key = Arrays.asList(apiKey.getPlainText(), n.isEuropean());
+                    batchKeys.putIfAbsent(key, apiKey);
+                    batches.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+                    timings[i].queued();
+                }
+            }
+
+            List<Batch> deliveries = new ArrayList<>();
+            for (Map.Entry<List<Object>, List<Integer>> batch : batches.entrySet()) {
+                deliveries.add(new Batch(coalescing, batchKeys.get(batch.getKey()), batch.getValue(), run, listener));
+            }
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                this.batches = deliveries;
+            }
+            DeploymentDispatcher.get().queue(deliveries, () -> complete(run, listener));
+        }
+
+        private void complete(Run<?, ?> run, TaskListener listener) {
+            List<String> ids;
+            boolean success = true;
+            synchronized (this) {
+                if (done || suspended) {
+                    // stopped, or to be completed once the step resumes after the restart
+                    return;
+                }
+                done = true;
+                DeploymentNotificationAction action = DeploymentNotificationAction.of(run);
+                for (int i = 0; i < notifications.size(); i++) {
+                    success &= delivered[i];
+                    action.add(new DeploymentNotificationAction.Outcome(notifications.get(i).getTarget(), status(i),
+                            deploymentIds[i], delivered[i] ? null : "Failed to notify New Relic", timings[i]));
+                }
+                ids = new ArrayList<>(Arrays.asList(deploymentIds));
+            }
+            try {
+                run.save();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to save New Relic notification outcome for " + run, e);
+            }
+            if (!wait) {
+                return;
+            }
+            if (success) {
+                getContext().onSuccess(ids);
+            } else {
+                getContext().onFailure(new AbortException("Failed to notify New Relic"));
+            }
+        }
+
+        private DeploymentNotificationAction.Status status(int index) {
+            if (delivered[index]) {
+                return DeploymentNotificationAction.Status.DELIVERED;
+            }
+            if (discarded[index]) {
+                return DeploymentNotificationAction.Status.DISCARDED;
+            }
+            return saved[index] ? DeploymentNotificationAction.Status.SAVED : DeploymentNotificationAction.Status.FAILED;
+        }
+
+        private synchronized void record(int index, boolean success, String deploymentId) {
+            delivered[index] = success;
+            failed[index] = !success;
+            deploymentIds[index] = deploymentId;
+        }
+
+        /**
+         * Notifications sharing an API key and region, sent as one NerdGraph request.
+         */
+        private final class Batch implements DeploymentDispatcher.Delivery {
+            private final NewRelicClient client;
+            private final ApiKeyCache.ApiKey apiKey;
+            private final List<Integer> indexes;
+            private final Run<?, ?> run;
+            private final TaskListener listener;
+            private volatile DeliveryTrace trace;
+
+            Batch(NewRelicClient client, ApiKeyCache.ApiKey apiKey, List<Integer> indexes, Run<?, ?> run,
+                  TaskListener listener) {
+                this.client = client;
+                this.apiKey = apiKey;
+                this.indexes = indexes;
+                this.run = run;
+                this.listener = listener;
+            }
+
+            @Override
+            public void run() {
+                for (int index : indexes) {
+                    timings[index].started();
+                }
+                try (DeliveryTrace trace = DeliveryTrace.start()) {
+                    this.trace = trace;
+                    if (isDone()) {
+                        // stopped while queued
+                        return;
+                    }
+                    try {
+                        send();
+                    } finally {
+                        for (int index : indexes) {
+                            timings[index].delivered(trace);
+                        }
+                    }
+                }
+                saveProgress();
+            }
+
+            /**
+             * Cancels the requests of the batch, or skips the batch if it has not started yet.
+             */
+            void cancel() {
+                DeliveryTrace running = trace;
+                if (running != null) {
+                    running.cancel();
+                }
+            }
+
+            private void send() {
+                List<Deployment> deployments = new ArrayList<>(indexes.size());
+                for (int index : indexes) {
+                    deployments.add(notifications.get(index).toDeployment());
+                }
+                boolean european = notifications.get(indexes.get(0)).isEuropean();
+                try {
+                    List<DeploymentResult> results = client.sendNotificationsV2(apiKey.getPlainText(), deployments,
+                            european, listener);
+                    for (int i = 0; i < indexes.size(); i++) {
+                        DeploymentResult result = results.get(i);
+                        if (result.isSuccess()) {
+                            listener.getLogger().println("Notified New Relic. New Relic Deployment ID: " + result.getDeploymentId());
+                            record(indexes.get(i), true, result.getDeploymentId());
+                        } else if (result.getError() == null) {
+                            listener.getLogger().println("Unable to reach New Relic to record the Deployment Id");
+                            record(indexes.get(i), true, null);
+                        } else {
+                            listener.error("Failed to notify New Relic. Entity GUID: %s", result.getEntityGuid());
+                            listener.getLogger().println(result.getError());
+                            record(indexes.get(i), false, null);
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    for (int i = 0; i < indexes.size(); i++) {
+                        listener.error("Failed to notify New Relic. Entity GUID: %s", deployments.get(i).getEntityGuid());
+                        record(indexes.get(i), false, null);
+                        if (e instanceof IOException && NotificationOutbox.isRetryable((IOException) e)) {
+                            save(indexes.get(i), deployments.get(i), european);
+                        }
+                    }
+                    e.printStackTrace(listener.getLogger());
+                }
+            }
+
+            @Override
+            public void discarded(String reason) {
+                listener.error("Notification discarded: %s", reason);
+                boolean european = notifications.get(indexes.get(0)).isEuropean();
+                for (int index : indexes) {
+                    record(index, false, null);
+                    synchronized (Execution.this) {
+                        discarded[index] = true;
+                    }
+                    save(index, notifications.get(index).toDeployment(), european);
+                }
+            }
+
+            @Override
+            public void shutdown() {
+                if (!wait) {
+                    // the step has already returned and will not resume, so the outbox takes the notifications over
+                    discarded("Jenkins is shutting down");
+                    return;
+                }
+                synchronized (Execution.this) {
+                    suspended = true;
+                }
+                listener.getLogger().println("Jenkins is shutting down. "
+                        + "The New Relic deployment notifications will be sent once the Pipeline resumes.");
+            }
+
+            private void save(int index, Deployment deployment, boolean european) {
+                try {
+                    NotificationOutbox.get().add(NotificationOutbox.Entry.forEntity(apiKey.getSecret(), european,
+                            run.getFullDisplayName(), deployment));
+                    synchronized (Execution.this) {
+                        saved[index] = true;
+                    }
+                    listener.getLogger().println("The notification was saved and will be sent again once New Relic can be reached.");
+                } catch (IOException e) {
+                    listener.error("Failed to save the notification for a later retry");
+                    e.printStackTrace(listener.getLogger());
+                }
+            }
+        }
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends StepDescriptor {
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            return Set.of(Run.class, TaskListener.class, EnvVars.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "newRelicDeployment";
+        }
+
+        @Override
+        @NonNull
+        public String getDisplayName() {
+            return "Record a deployment in New Relic";
+        }
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.util.FormValidation;
+import jenkins.model.GlobalConfiguration;
+import org.jenkinsci.Symbol;
+import org.jenkinsci.plugins.newrelicnotifier.api.RateLimiter;
+import org.jenkinsci.plugins.newrelicnotifier.api.Timeouts;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+import java.util.List;
+
+/**
+ * Controller-wide settings for the New Relic deployment notifier.
+ */
+@Extension
+@Symbol("newRelicDeploymentNotifier")
+public class NewRelicGlobalConfiguration extends GlobalConfiguration {
+
+    public static final int DEFAULT_APPLICATION_CACHE_TTL = 10;
+    public static final int DEFAULT_APPLICATION_CACHE_SIZE = 100;
+    public static final int DEFAULT_ASYNC_WORKERS = 4;
+    public static final int DEFAULT_ASYNC_QUEUE_SIZE = 1000;
+    public static final int DEFAULT_ASYNC_DRAIN_TIMEOUT = 30;
+    public static final int DEFAULT_COALESCE_WINDOW = 60;
+    public static final int DEFAULT_RATE_LIMIT = 600;
+    public static final int DEFAULT_RATE_LIMIT_BURST = 20;
+    public static final int DEFAULT_CHANGELOG_FILE_LIMIT = 64;
+
+    private int applicationCacheTtl = DEFAULT_APPLICATION_CACHE_TTL;
+    private int applicationCacheSize = DEFAULT_APPLICATION_CACHE_SIZE;
+    private boolean applicationTypeahead;
+    private int asyncWorkers = DEFAULT_ASYNC_WORKERS;
+    private int asyncQueueSize = DEFAULT_ASYNC_QUEUE_SIZE;
+    private DeploymentDispatcher.OverflowPolicy asyncOverflowPolicy = DeploymentDispatcher.OverflowPolicy.WAIT;
+    private int asyncDrainTimeout = DEFAULT_ASYNC_DRAIN_TIMEOUT;
+    private int coalesceWindow = DEFAULT_COALESCE_WINDOW;
+    private int rateLimit = DEFAULT_RATE_LIMIT;
+    private int rateLimitBurst = DEFAULT_RATE_LIMIT_BURST;
+    private int connectTimeout = Timeouts.DEFAULT_CONNECT;
+    private int readTimeout = Timeouts.DEFAULT_READ;
+    private int leaseTimeout = Timeouts.DEFAULT_LEASE;
+    private int changelogFileLimit = DEFAULT_CHANGELOG_FILE_LIMIT;
+
+    public NewRelicGlobalConfiguration() {
+        load();
+        RateLimiter.configure(rateLimit, rateLimitBurst);
+        Timeouts.configure(connectTimeout, readTimeout, leaseTimeout);
+    }
+
+    @NonNull
+    public static NewRelicGlobalConfiguration get() {
+        return ExtensionList.lookupSingleton(NewRelicGlobalConfiguration.class);
+    }
+
+    /**
+     * @return Minutes an application list is served from memory before it is refreshed in the background
+     */
+    public int getApplicationCacheTtl() {
+        return applicationCacheTtl;
+    }
+
+    @DataBoundSetter
+    public void setApplicationCacheTtl(int applicationCacheTtl) {
+        this.applicationCacheTtl = Math.max(0, applicationCacheTtl);
+        save();
+    }
+
+    /**
+     * @return Maximum number of application lists (one per API key and region) kept in memory
+     */
+    public int getApplicationCacheSize() {
+        return applicationCacheSize;
+    }
+
+    @DataBoundSetter
+    public void setApplicationCacheSize(int applicationCacheSize) {
+        this.applicationCacheSize = Math.max(1, applicationCacheSize);
+        save();
+    }
+
+    /**
+     * @return Whether job configuration pages only list applications matching the name filter, instead of
+     * loading every application available to the API key
+     */
+    public boolean isApplicationTypeahead() {
+        return applicationTypeahead;
+    }
+
+    @DataBoundSetter
+    public void setApplicationTypeahead(boolean applicationTypeahead) {
+        this.applicationTypeahead = applicationTypeahead;
+        save();
+    }
+
+    /**
+     * @return Number of threads delivering asynchronous notifications
+     */
+    public int getAsyncWorkers() {
+        return asyncWorkers;
+    }
+
+    @DataBoundSetter
+    public void setAsyncWorkers(int asyncWorkers) {
+        this.asyncWorkers = Math.max(1, asyncWorkers);
+        save();
+    }
+
+    /**
+     * @return Maximum number of asynchronous notifications waiting for or being delivered
+     */
+    public int getAsyncQueueSize() {
+        return asyncQueueSize;
+    }
+
+    @DataBoundSetter
+    public void setAsyncQueueSize(int asyncQueueSize) {
+        this.asyncQueueSize = Math.max(1, asyncQueueSize);
+        save();
+    }
+
+    /**
+     * @return What happens to an asynchronous notification when the queue is full
+     */
+    @NonNull
+    public DeploymentDispatcher.OverflowPolicy getAsyncOverflowPolicy() {
+        return asyncOverflowPolicy != null ? asyncOverflowPolicy : DeploymentDispatcher.OverflowPolicy.WAIT;
+    }
+
+    @DataBoundSetter
+    public void setAsyncOverflowPolicy(DeploymentDispatcher.OverflowPolicy asyncOverflowPolicy) {
+        this.asyncOverflowPolicy = asyncOverflowPolicy;
+        save();
+    }
+
+    /**
+     * @return Seconds queued notifications are given to complete when Jenkins shuts down
+     */
+    public int getAsyncDrainTimeout() {
+        return asyncDrainTimeout;
+    }
+
+    @DataBoundSetter
+    public void setAsyncDrainTimeout(int asyncDrainTimeout) {
+        this.asyncDrainTimeout = Math.max(0, asyncDrainTimeout);
+        save();
+    }
+
+    /**
+     * @return Seconds during which an identical deployment notification is not sent again, {@code 0} to send every one
+     */
+    public int getCoalesceWindow() {
+        return coalesceWindow;
+    }
+
+    @DataBoundSetter
+    public void setCoalesceWindow(int coalesceWindow) {
+        this.coalesceWindow = Math.max(0, coalesceWindow);
+        save();
+    }
+
+    /**
+     * @return Requests per minute sent to one region with the same API key, or {@code 0} for no limit
+     */
+    public int getRateLimit() {
+        return rateLimit;
+    }
+
+    @DataBoundSetter
+    public void setRateLimit(int rateLimit) {
+        this.rateLimit = Math.max(0, rateLimit);
+        RateLimiter.configure(this.rateLimit, rateLimitBurst);
+        save();
+    }
+
+    /**
+     * @return Requests sent at once before the rate limit applies
+     */
+    public int getRateLimitBurst() {
+        return rateLimitBurst;
+    }
+
+    @DataBoundSetter
+    public void setRateLimitBurst(int rateLimitBurst) {
+        this.rateLimitBurst = Math.max(1, rateLimitBurst);
+        RateLimiter.configure(rateLimit, this.rateLimitBurst);
+        save();
+    }
+
+    /**
+     * @return Seconds allowed to establish a connection to New Relic
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    @DataBoundSetter
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = Math.max(1, connectTimeout);
+        Timeouts.configure(this.connectTimeout, readTimeout, leaseTimeout);
+        save();
+    }
+
+    /**
+     * @return Seconds New Relic may stay silent while a response is awaited
+     */
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    @DataBoundSetter
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = Math.max(1, readTimeout);
+        Timeouts.configure(connectTimeout, this.readTimeout, leaseTimeout);
+        save();
+    }
+
+    /**
+     * @return Seconds a request waits for a pooled connection when every connection is in use
+     */
+    public int getLeaseTimeout() {
+        return leaseTimeout;
+    }
+
+    @DataBoundSetter
+    public void setLeaseTimeout(int leaseTimeout) {
+        this.leaseTimeout = Math.max(1, leaseTimeout);
+        Timeouts.configure(connectTimeout, readTimeout, this.leaseTimeout);
+        save();
+    }
+
+    /**
+     * @return Kilobytes read from a changelog file, longer changelogs are truncated
+     */
+    public int getChangelogFileLimit() {
+        return changelogFileLimit;
+    }
+
+    /**
+     * @param changelogFileLimit Kilobytes read from a changelog file, at least 1
+     */
+    @DataBoundSetter
+    public void setChangelogFileLimit(int changelogFileLimit) {
+        this.changelogFileLimit = Math.max(1, changelogFileLimit);
+        save();
+    }
+
+    /**
+     * @return The rate limiters in use, to show how much notifications are throttled
+     */
+    public List<RateLimiter> getRateLimiters() {
+        return RateLimiter.getAll();
+    }
+
+    public FormValidation doCheckApplicationCacheTtl(@QueryParameter int value) {
+        if (value < 0) {
+            return FormValidation.error("Must not be negative");
+        }
+        return FormValidation.ok();
+    }
+
+    public FormValidation doCheckApplicationCacheSize(@QueryParameter int value) {
+        if (value < 1) {
+            return FormValidation.error("Must be at least 1");
+        }
+        return FormValidation.ok();
+    }
+
+    @Override
+    @NonNull
+    public String getDisplayName() {
+        return "New Relic Deployment Notifier";
+    }
+}
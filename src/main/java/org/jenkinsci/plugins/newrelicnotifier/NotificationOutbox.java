@@ -0,0 +1,274 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import hudson.XmlFile;
+import hudson.model.TaskListener;
+import hudson.util.Secret;
+import hudson.util.XStream2;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import org.apache.http.client.HttpResponseException;
+import org.jenkinsci.plugins.newrelicnotifier.api.CircuitOpenException;
+import org.jenkinsci.plugins.newrelicnotifier.api.Deployment;
+import org.jenkinsci.plugins.newrelicnotifier.api.NerdGraphException;
+import org.jenkinsci.plugins.newrelicnotifier.api.NewRelicClient;
+import org.jenkinsci.plugins.newrelicnotifier.api.RetryPolicy;
+import org.jenkinsci.plugins.newrelicnotifier.api.SharedNotificationException;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Notifications that could not be delivered, kept under {@code JENKINS_HOME} until New Relic can be reached again.
+ * <p>
+ * Each notification is one file, written atomically, and named after the time it was saved so replay keeps the
+ * original order. A file is deleted as soon as its notification has been delivered, so a restart only replays
+ * what has not been delivered yet. Replay is done by {@link NotificationOutboxReplay}.
+ */
+public final class NotificationOutbox {
+
+    private static final Logger LOGGER = Logger.getLogger(NotificationOutbox.class.getName());
+
+    /**
+     * How long an undelivered notification is kept before it is dropped.
+     */
+    static final long MAX_AGE = TimeUnit.HOURS.toMillis(
+            SystemProperties.getInteger(NotificationOutbox.class.getName() + ".maxAgeHours", 72));
+
+    private static final XStream2 XSTREAM = new XStream2();
+
+    static {
+        XSTREAM.alias("newrelic-notification", Entry.class);
+    }
+
+    private static NotificationOutbox instance;
+
+    private final File directory;
+
+    NotificationOutbox(File directory) {
+        this.directory = directory;
+    }
+
+    public static synchronized NotificationOutbox get() {
+        if (instance == null) {
+            instance = new NotificationOutbox(
+                    new File(Jenkins.get().getRootDir(), "newrelic-deployment-notifier/outbox"));
+        }
+        return instance;
+    }
+
+    /**
+     * Whether a failed delivery may succeed later without recording the deployment twice. Only deliveries New Relic
+     * did not process qualify: failures to connect, hosts considered unavailable and answers telling that the request
+     * was not processed ({@link RetryPolicy#isRetryable(int)}). NerdGraph errors say themselves. Requests that may have
+     * reached New Relic, such as after a read timeout or a server error, are not kept, nor are deliveries that ran out
+     * of time, were cancelled or were interrupted: the build gave up on them. A deployment sent by another build,
+     * {@link SharedNotificationException}, is left to that build.
+     */
+    public static boolean isRetryable(IOException e) {
+        if (e instanceof SharedNotificationException) {
+            return false;
+        }
+        if (e instanceof NerdGraphException) {
+            return ((NerdGraphException) e).isRetryable();
+        }
+        if (e instanceof HttpResponseException) {
+            return RetryPolicy.isRetryable(((HttpResponseException) e).getStatusCode());
+        }
+        return e instanceof CircuitOpenException || RetryPolicy.isRetryable(e);
+    }
+
+    /**
+     * Saves a notification to be delivered later.
+     */
+    public void add(Entry entry) throws IOException {
+        File file = new File(directory, String.format("%013d-%s.xml", entry.created, UUID.randomUUID()));
+        new XmlFile(XSTREAM, file).write(entry);
+    }
+
+    /**
+     * @return The number of notifications waiting to be delivered
+     */
+    public int size() {
+        return files().size();
+    }
+
+    /**
+     * Delivers saved notifications, oldest first. Once delivery to a region fails, its remaining notifications
+     * are left for the next replay.
+     *
+     * @param client The client to deliver with
+     * @param limit The most notifications to send
+     * @param listener Receives progress messages
+     * @return The number of notifications delivered
+     */
+    public synchronized int replay(NewRelicClient client, int limit, TaskListener listener) throws InterruptedException {
+        Set<Boolean> unavailable = new HashSet<>();
+        int sent = 0;
+        int delivered = 0;
+        for (File file : files()) {
+            if (sent >= limit || unavailable.size() == 2) {
+                break;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            XmlFile xml = new XmlFile(XSTREAM, file);
+            Entry entry;
+            try {
+                entry = (Entry) xml.read();
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Dropping unreadable New Relic notification " + file, e);
+                delete(xml);
+                continue;
+            }
+            if (unavailable.contains(entry.european)) {
+                continue;
+            }
+            if (System.currentTimeMillis() - entry.created > MAX_AGE) {
+                LOGGER.log(Level.WARNING, "Dropping New Relic notification for {0} from {1}, it could not be delivered in time",
+                        new Object[] {entry.getTarget(), entry.source});
+                delete(xml);
+                continue;
+            }
+
+            sent++;
+            try {
+                entry.send(client, listener);
+                delivered++;
+                delete(xml);
+                listener.getLogger().println("Delivered New Relic notification for " + entry.getTarget() + " from " + entry.source);
+            } catch (IOException e) {
+                if (isRetryable(e)) {
+                    unavailable.add(entry.european);
+                    listener.getLogger().println("New Relic is still unavailable: " + e.getMessage());
+                } else {
+                    LOGGER.log(Level.WARNING, "Dropping New Relic notification for " + entry.getTarget() + " from " + entry.source, e);
+                    delete(xml);
+                }
+            }
+        }
+        return delivered;
+    }
+
+    private List<File> files() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".xml"));
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        List<File> result = new ArrayList<>(Arrays.asList(files));
+        Collections.sort(result);
+        return result;
+    }
+
+    private static void delete(XmlFile xml) {
+        try {
+            xml.delete();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to delete " + xml.getFile(), e);
+        }
+    }
+
+    /**
+     * A saved notification. Only expanded values are kept, and the API key is stored encrypted.
+     */
+    public static final class Entry {
+        private final Secret apiKey;
+        private final boolean european;
+        private final String source;
+        private final long created;
+
+        // REST API v2 notification
+        private final String applicationId;
+        private final String description;
+        private final String revision;
+        private final String changelog;
+        private final String user;
+
+        // change tracking notification
+        private final Deployment deployment;
+
+        private Entry(Secret apiKey, boolean european, String source, String applicationId, String description,
+                      String revision, String changelog, String user, Deployment deployment) {
+            this.apiKey = apiKey;
+            this.european = european;
+            this.source = source;
+            this.created = System.currentTimeMillis();
+            this.applicationId = applicationId;
+            this.description = description;
+            this.revision = revision;
+            this.changelog = changelog;
+            this.user = user;
+            this.deployment = deployment;
+        }
+
+        public static Entry forApplication(Secret apiKey, boolean european, String source, String applicationId,
+                                           String description, String revision, String changelog, String user) {
+            return new Entry(apiKey, european, source, applicationId, description, revision, changelog, user, null);
+        }
+
+        public static Entry forEntity(Secret apiKey, boolean european, String source, Deployment deployment) {
+            return new Entry(apiKey, european, source, null, null, null, null, null, deployment);
+        }
+
+        /**
+         * @return The application ID or entity GUID notified
+         */
+        public String getTarget() {
+            return deployment != null ? deployment.getEntityGuid() : applicationId;
+        }
+
+        void send(NewRelicClient client, TaskListener listener) throws IOException {
+            String key = Secret.toString(apiKey);
+            if (deployment == null) {
+                client.sendNotification(key, applicationId, description, revision, changelog, user, european);
+            } else {
+                client.sendNotificationV2(key,
+                        deployment.getChangelog(),
+                        deployment.getCommit(),
+                        deployment.getDeepLink(),
+                        deployment.getDeploymentType(),
+                        deployment.getDescription(),
+                        deployment.getEntityGuid(),
+                        deployment.getGroupId(),
+                        deployment.getTimestamp(),
+                        deployment.getUser(),
+                        deployment.getVersion(),
+                        european,
+                        listener);
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import com.codahale.metrics.CachedGauge;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.Timer;
+import hudson.Extension;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+import jenkins.metrics.api.MetricProvider;
+import org.apache.http.pool.PoolStats;
+import org.jenkinsci.plugins.newrelicnotifier.api.ClientMetrics;
+import org.jenkinsci.plugins.newrelicnotifier.api.NewRelicClientImpl;
+
+/**
+ * Publishes New Relic client metrics through the Metrics plugin, and so on its standard and Prometheus endpoints.
+ * Only loaded when the Metrics plugin is installed.
+ * <p>
+ * Metric names start with {@code newrelic-deployment-notifier} followed by the region ({@code us} or {@code eu})
+ * where they apply, e.g. {@code newrelic-deployment-notifier.eu.sendNotificationV2} for the latency of
+ * {@link org.jenkinsci.plugins.newrelicnotifier.api.NewRelicClient#sendNotificationV2}.
+ */
+@Extension(optional = true)
+public class NotifierMetrics extends MetricProvider implements ClientMetrics.Recorder {
+
+    static final String PREFIX = "newrelic-deployment-notifier";
+
+    private static final String[] OPERATIONS = {
+            ClientMetrics.GET_APPLICATIONS,
+            ClientMetrics.SEND_NOTIFICATION,
+            ClientMetrics.SEND_NOTIFICATION_V2,
+            ClientMetrics.SEND_NOTIFICATIONS_V2,
+    };
+
+    private final Map<String, Metric> metrics = new HashMap<>();
+    private final Region us = new Region("us");
+    private final Region eu = new Region("eu");
+    private final Counter cacheHits = counter(MetricRegistry.name(PREFIX, "applicationCache", "hits"));
+    private final Counter cacheMisses = counter(MetricRegistry.name(PREFIX, "applicationCache", "misses"));
+
+    public NotifierMetrics() {
+        metrics.put(MetricRegistry.name(PREFIX, "dispatcher", "queueDepth"),
+                (Gauge<Integer>) NewRelicDeploymentNotifier::getDispatchQueueDepth);
+        metrics.put(MetricRegistry.name(PREFIX, "asyncQueue", "queueDepth"),
+                (Gauge<Integer>) DeploymentDispatcher::peekQueueDepth);
+        // counting the outbox lists a directory, so it is not done on every scrape
+        metrics.put(MetricRegistry.name(PREFIX, "outbox", "size"), new CachedGauge<Integer>(1, TimeUnit.MINUTES) {
+            @Override
+            protected Integer loadValue() {
+                return NotificationOutbox.get().size();
+            }
+        });
+        us.pool(NewRelicClientImpl.API_HOST);
+        eu.pool(NewRelicClientImpl.EUROPEAN_API_HOST);
+        ClientMetrics.setRecorder(this);
+    }
+
+    @Override
+    public MetricSet getMetricSet() {
+        Map<String, Metric> all = Collections.unmodifiableMap(metrics);
+        return () -> all;
+    }
+
+    @Override
+    public void call(String operation, boolean european, long nanos, boolean success) {
+        Region region = region(european);
+        Timer timer = region.latency.get(operation);
+        if (timer != null) {
+            timer.update(nanos, TimeUnit.NANOSECONDS);
+        }
+        if (!success) {
+            Counter failures = region.failures.get(operation);
+            if (failures != null) {
+                failures.inc();
+            }
+        }
+    }
+
+    @Override
+    public void response(boolean european, int status) {
+        Counter[] statuses = region(european).statuses;
+        int statusClass = status / 100;
+        statuses[statusClass >= 1 && statusClass <= 5 ? statusClass : 0].inc();
+    }
+
+    @Override
+    public void retry(boolean european) {
+        region(european).retries.inc();
+    }
+
+    @Override
+    public void rateLimited(boolean european, long nanos) {
+        region(european).rateLimitWaits.update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void applicationCache(boolean hit) {
+        (hit ? cacheHits : cacheMisses).inc();
+    }
+
+    private Region region(boolean european) {
+        return european ? eu : us;
+    }
+
+    private Counter counter(String name) {
+        Counter counter = new Counter();
+        metrics.put(name, counter);
+        return counter;
+    }
+
+    private Timer timer(String name) {
+        Timer timer = new Timer();
+        metrics.put(name, timer);
+        return timer;
+    }
+
+    /**
+     * The metrics of one New Relic region.
+     */
+    private final class Region {
+        private final String name;
+        private final Map<String, Timer> latency = new HashMap<>();
+        private final Map<String, Counter> failures = new HashMap<>();
+        /**
+         * Responses by status class, index {@code 0} counting requests that got no response.
+         */
+        private final Counter[] statuses = new Counter[6];
+        private final Counter retries;
+        private final Timer rateLimitWaits;
+
+        Region(String region) {
+            this.name = MetricRegistry.name(PREFIX, region);
+            for (String operation : OPERATIONS) {
+                latency.put(operation, timer(MetricRegistry.name(name, operation)));
+                failures.put(operation, counter(MetricRegistry.name(name, operation, "failures")));
+            }
+            statuses[0] = counter(MetricRegistry.name(name, "responses", "connectionFailure"));
+            for (int i = 1; i < statuses.length; i++) {
+                statuses[i] = counter(MetricRegistry.name(name, "responses", i + "xx"));
+            }
+            retries = counter(MetricRegistry.name(name, "retries"));
+            rateLimitWaits = timer(MetricRegistry.name(name, "rateLimitWaits"));
+        }
+
+        void pool(String host) {
+            gauge("leased", host, PoolStats::getLeased);
+            gauge("available", host, PoolStats::getAvailable);
+            gauge("pending", host, PoolStats::getPending);
+            gauge("max", host, PoolStats::getMax);
+        }
+
+        private void gauge(String stat, String host, ToIntFunction<PoolStats> value) {
+            metrics.put(MetricRegistry.name(name, "connections", stat), (Gauge<Integer>) () -> {
+                PoolStats stats = NewRelicClientImpl.getPoolStats(host);
+                return stats != null ? value.applyAsInt(stats) : 0;
+            });
+        }
+    }
+}
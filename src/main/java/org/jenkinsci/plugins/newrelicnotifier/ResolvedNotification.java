@@ -0,0 +1,148 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import hudson.Util;
+import org.jenkinsci.plugins.newrelicnotifier.api.Deployment;
+
+import java.io.Serializable;
+
+/**
+ * A {@link DeploymentNotificationBean} with every build variable expanded, resolved once per run and used by every
+ * later step instead of the configuration.
+ */
+public final class ResolvedNotification implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String credentialsId;
+    private final String applicationId;
+    private final String description;
+    private final String revision;
+    private final String changelog;
+    private final String commit;
+    private final String deeplink;
+    private final String user;
+    private final String entityGuid;
+    private final String deploymentType;
+    private final String groupId;
+    private final String timestamp;
+    private final String version;
+    private final boolean european;
+
+    ResolvedNotification(String credentialsId, String applicationId, String description, String revision,
+                         String changelog, String commit, String deeplink, String user, String entityGuid,
+                         String deploymentType, String groupId, String timestamp, String version, boolean european) {
+        this.credentialsId = credentialsId;
+        this.applicationId = applicationId;
+        this.description = description;
+        this.revision = revision;
+        this.changelog = changelog;
+        this.commit = commit;
+        this.deeplink = deeplink;
+        this.user = user;
+        this.entityGuid = entityGuid;
+        this.deploymentType = deploymentType;
+        this.groupId = groupId;
+        this.timestamp = timestamp;
+        this.version = version;
+        this.european = european;
+    }
+
+    public String getCredentialsId() {
+        return credentialsId;
+    }
+
+    public String getApplicationId() {
+        return applicationId;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public String getRevision() {
+        return revision;
+    }
+
+    public String getChangelog() {
+        return changelog;
+    }
+
+    public String getCommit() {
+        return commit;
+    }
+
+    public String getDeeplink() {
+        return deeplink;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public String getEntityGuid() {
+        return entityGuid;
+    }
+
+    public String getDeploymentType() {
+        return deploymentType;
+    }
+
+    public String getGroupId() {
+        return groupId;
+    }
+
+    public String getTimestamp() {
+        return timestamp;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public boolean isEuropean() {
+        return european;
+    }
+
+    /**
+     * @return Whether the notification is a change tracking deployment for an entity, rather than a REST API
+     * deployment for an application
+     */
+    public boolean isChangeTracking() {
+        return Util.fixEmpty(entityGuid) != null;
+    }
+
+    /**
+     * @return The entity GUID or application ID notified
+     */
+    public String getTarget() {
+        return isChangeTracking() ? entityGuid : applicationId;
+    }
+
+    public Deployment toDeployment() {
+        return new Deployment(changelog, commit, deeplink, deploymentType, description, entityGuid, groupId,
+                timestamp, user, version);
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.StreamTaskListener;
+import jenkins.security.MasterToSlaveCallable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sends notifications from the other end of a remoting channel, typically the agent running a build, using the
+ * pooled client and network of that JVM. The Jenkins proxy configuration is not available there, so requests go
+ * through the proxy set by the system properties of the agent JVM, if any. Application lists are still loaded by
+ * this JVM.
+ * <p>
+ * The timeouts and what is left of the deadline of the current {@link DeliveryTrace} are sent with each call and
+ * applied by the agent, so the agent stops requests that are still running at the deadline itself rather than
+ * relying on the interrupted channel call. What the calls cost there is added to the trace. Output written on the
+ * agent is copied to the listener once a call completes. Rate limits and the circuit breaker are those of the agent.
+ */
+public class AgentNewRelicClient implements NewRelicClient {
+
+    private final VirtualChannel channel;
+    private final NewRelicClient local;
+
+    /**
+     * @param channel The channel to the JVM sending the notifications
+     * @param local The client used for everything but notifications
+     */
+    public AgentNewRelicClient(VirtualChannel channel, NewRelicClient local) {
+        this.channel = channel;
+        this.local = local;
+    }
+
+    @Override
+    public List<Application> getApplications(String apiKey, boolean european) throws IOException {
+        return local.getApplications(apiKey, european);
+    }
+
+    @Override
+    public List<Application> getApplications(String apiKey, boolean european, String nameFilter) throws IOException {
+        return local.getApplications(apiKey, european, nameFilter);
+    }
+
+    @Override
+    public String getApiEndpoint() {
+        return local.getApiEndpoint();
+    }
+
+    @Override
+    public String getApiEndpoint(boolean european) {
+        return local.getApiEndpoint(european);
+    }
+
+    @Override
+    public void sendNotification(String apiKey, String applicationId, String description, String revision,
+                                 String changelog, String user, boolean european) throws IOException {
+        call(limit(new SendNotification(apiKey, european, applicationId, description, revision, changelog, user)),
+                null);
+    }
+
+    @Override
+    public void sendNotificationV2(String apiKey, String changelog, String commit, String deepLink,
+                                   String deploymentType, String description, String entityGuid, String groupId,
+                                   String timestamp, String user, String version, boolean european,
+                                   TaskListener listener) throws IOException {
+        call(limit(new SendNotificationV2(apiKey, european, new Deployment(changelog, commit, deepLink,
+                deploymentType, description, entityGuid, groupId, timestamp, user, version))), listener);
+    }
+
+    @Override
+    public List<DeploymentResult> sendNotificationsV2(String apiKey, List<Deployment> deployments, boolean european,
+                                                      TaskListener listener) throws IOException {
+        return call(limit(new SendNotificationsV2(apiKey, european, deployments)), listener);
+    }
+
+    /**
+     * Applies the timeouts and what is left of the deadline of the current trace to a request.
+     */
+    private static <V> Request<V> limit(Request<V> request) throws DeadlineExceededException {
+        request.timeouts = DeliveryTrace.currentTimeouts().resolve();
+        request.remaining = DeliveryTrace.remainingNanos();
+        return request;
+    }
+
+    private <V> V call(Request<V> request, TaskListener listener) throws IOException {
+        Reply<V> reply;
+        try {
+            reply = channel.call(request);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw (IOException) new InterruptedIOException("New Relic notification cancelled").initCause(e);
+        }
+        DeliveryTrace.merge(reply.attempts, reply.serializingNanos, reply.networkNanos, reply.deploymentId);
+        if (listener != null) {
+            listener.getLogger().print(reply.log);
+        }
+        if (reply.failure != null) {
+            throw reply.failure;
+        }
+        return reply.value;
+    }
+
+    /**
+     * A call made on the agent, within a trace limited like the one of the caller.
+     */
+    private abstract static class Request<V> extends MasterToSlaveCallable<Reply<V>, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        final String apiKey;
+        final boolean european;
+        /** Timeouts of each request, resolved on the controller. */
+        Timeouts timeouts = Timeouts.DEFAULT;
+        /** Nanoseconds left before the caller's deadline, {@link Long#MAX_VALUE} if there is none. */
+        long remaining = Long.MAX_VALUE;
+
+        Request(String apiKey, boolean european) {
+            this.apiKey = apiKey;
+            this.european = european;
+        }
+
+        @Override
+        public Reply<V> call() {
+            Reply<V> reply = new Reply<>();
+            ByteArrayOutputStream log = new ByteArrayOutputStream();
+            TaskListener listener = new StreamTaskListener(log, StandardCharsets.UTF_8);
+            try (DeliveryTrace trace = DeliveryTrace.start()) {
+                // the deadline is measured again on this JVM, whose nanoTime is unrelated to the controller's; time
+                // spent in transit only makes it later than the caller's by that much
+                if (remaining == Long.MAX_VALUE) {
+                    trace.limit(timeouts);
+                } else {
+                    trace.limit(timeouts, System.nanoTime() + remaining);
+                }
+                try {
+                    reply.value = send(new NewRelicClientImpl(), listener, trace);
+                } catch (IOException e) {
+                    reply.failure = e;
+                }
+                reply.attempts = trace.getAttempts();
+                reply.serializingNanos = trace.getSerializingNanos();
+                reply.networkNanos = trace.getNetworkNanos();
+                reply.deploymentId = trace.getDeploymentId();
+            }
+            listener.getLogger().flush();
+            reply.log = log.toString(StandardCharsets.UTF_8);
+            return reply;
+        }
+
+        abstract V send(NewRelicClient client, TaskListener listener, DeliveryTrace trace) throws IOException;
+    }
+
+    /**
+     * The result of a {@link Request}, including the exception it failed with, so the trace and output of a failed
+     * call are not lost.
+     */
+    private static final class Reply<V> implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private V value;
+        private IOException failure;
+        private String log;
+        private int attempts;
+        private long serializingNanos;
+        private long networkNanos;
+        private String deploymentId;
+    }
+
+    private static final class SendNotification extends Request<Void> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String applicationId;
+        private final String description;
+        private final String revision;
+        private final String changelog;
+        private final String user;
+
+        SendNotification(String apiKey, boolean european, String applicationId, String description, String revision,
+                         String changelog, String user) {
+            super(apiKey, european);
+            this.applicationId = applicationId;
+            this.description = description;
+            this.revision = revision;
+            this.changelog = changelog;
+            this.user = user;
+        }
+
+        @Override
+        Void send(NewRelicClient client, TaskListener listener, DeliveryTrace trace) throws IOException {
+            client.sendNotification(apiKey, applicationId, description, revision, changelog, user, european);
+            return null;
+        }
+    }
+
+    private static final class SendNotificationV2 extends Request<String> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Deployment deployment;
+
+        SendNotificationV2(String apiKey, boolean european, Deployment deployment) {
+            super(apiKey, european);
+            this.deployment = deployment;
+        }
+
+        @Override
+        String send(NewRelicClient client, TaskListener listener, DeliveryTrace trace) throws IOException {
+            Deployment d = deployment;
+            client.sendNotificationV2(apiKey, d.getChangelog(), d.getCommit(), d.getDeepLink(),
+                    d.getDeploymentType(), d.getDescription(), d.getEntityGuid(), d.getGroupId(), d.getTimestamp(),
+                    d.getUser(), d.getVersion(), european, listener);
+            return trace.getDeploymentId();
+        }
+    }
+
+    private static final class SendNotificationsV2 extends Request<List<DeploymentResult>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<Deployment> deployments;
+
+        SendNotificationsV2(String apiKey, boolean european, List<Deployment> deployments) {
+            super(apiKey, european);
+            this.deployments = new ArrayList<>(deployments);
+        }
+
+        @Override
+        List<DeploymentResult> send(NewRelicClient client, TaskListener listener, DeliveryTrace trace)
+                throws IOException {
+            return new ArrayList<>(client.sendNotificationsV2(apiKey, deployments, european, listener));
+        }
+    }
+}
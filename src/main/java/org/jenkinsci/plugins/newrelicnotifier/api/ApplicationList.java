@@ -6,11 +6,25 @@ public class ApplicationList {
     
     private List<Application> applications;
 
+    private transient int lastPage;
+
     public ApplicationList(List<Application> applications) {
         this.applications = applications;
     }
 
+    public ApplicationList(List<Application> applications, int lastPage) {
+        this.applications = applications;
+        this.lastPage = lastPage;
+    }
+
     public List<Application> getApplications() {
         return applications;
     }
+
+    /**
+     * @return The number of the last page as announced by the response's {@code Link} header, or 0 if unknown
+     */
+    public int getLastPage() {
+        return lastPage;
+    }
 }
@@ -0,0 +1,99 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import jenkins.util.SystemProperties;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs the blocking methods of a {@link NewRelicClient} for its {@code Async} methods on a {@link DispatchExecutor},
+ * so at most {@link #CONCURRENCY} calls run at once on this JVM. Calls cancelled while waiting for their turn are
+ * not run.
+ * <p>
+ * The timeouts and what is left of the deadline of the caller's {@link DeliveryTrace} apply to the call, and
+ * cancelling the returned future cancels the requests it is running. What the call costs is not added to the
+ * caller's trace, which the caller may have closed by then.
+ */
+final class AsyncCall {
+
+    /**
+     * Maximum number of asynchronous calls running at once, shared by all clients on this JVM.
+     */
+    static final int CONCURRENCY = SystemProperties.getInteger(AsyncCall.class.getName() + ".concurrency", 8);
+
+    private static final DispatchExecutor EXECUTOR = DispatchExecutor.create("NewRelicClient.async", CONCURRENCY);
+
+    private AsyncCall() {
+    }
+
+    /**
+     * A blocking client call.
+     */
+    @FunctionalInterface
+    interface Call<T> {
+        T call() throws IOException;
+    }
+
+    static <T> CompletableFuture<T> supply(Call<T> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Timeouts timeouts = DeliveryTrace.currentTimeouts();
+        long remaining;
+        try {
+            remaining = DeliveryTrace.remainingNanos();
+        } catch (DeadlineExceededException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        long deadline = System.nanoTime() + remaining;
+        try {
+            EXECUTOR.execute(() -> {
+                if (future.isDone()) {
+                    return;
+                }
+                try (DeliveryTrace trace = DeliveryTrace.start()) {
+                    if (remaining == Long.MAX_VALUE) {
+                        trace.limit(timeouts);
+                    } else {
+                        trace.limit(timeouts, deadline);
+                    }
+                    future.whenComplete((value, failure) -> {
+                        if (failure instanceof CancellationException) {
+                            trace.cancel();
+                        }
+                    });
+                    future.complete(call.call());
+                } catch (IOException | RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+}
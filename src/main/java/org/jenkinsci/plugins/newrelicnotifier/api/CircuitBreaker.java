@@ -0,0 +1,84 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import jenkins.util.SystemProperties;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Fails requests to a New Relic host (i.e. region) fast once it keeps failing, so builds do not each wait for
+ * connection timeouts while New Relic is down.
+ * <p>
+ * After {@link #FAILURE_THRESHOLD} consecutive failures the circuit opens for {@link #OPEN_DURATION} milliseconds.
+ * Requests are then let through again, and the first failure reopens the circuit until a request succeeds.
+ */
+public final class CircuitBreaker {
+
+    public static final int FAILURE_THRESHOLD =
+            SystemProperties.getInteger(CircuitBreaker.class.getName() + ".failureThreshold", 5);
+
+    public static final long OPEN_DURATION =
+            SystemProperties.getLong(CircuitBreaker.class.getName() + ".openDuration", 30000L);
+
+    private static final Map<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+    private final String host;
+    private int failures;
+    private long openUntil;
+
+    CircuitBreaker(String host) {
+        this.host = host;
+    }
+
+    public static CircuitBreaker forHost(String host) {
+        return BREAKERS.computeIfAbsent(host, CircuitBreaker::new);
+    }
+
+    /**
+     * @throws CircuitOpenException if the host is considered unavailable
+     */
+    public synchronized void checkAvailable() throws CircuitOpenException {
+        long remaining = openUntil - System.currentTimeMillis();
+        if (remaining > 0) {
+            throw new CircuitOpenException(host, remaining);
+        }
+    }
+
+    public synchronized void recordSuccess() {
+        failures = 0;
+        openUntil = 0;
+    }
+
+    public synchronized void recordFailure() {
+        if (++failures >= FAILURE_THRESHOLD) {
+            openUntil = System.currentTimeMillis() + OPEN_DURATION;
+        }
+    }
+
+    public synchronized boolean isOpen() {
+        return openUntil > System.currentTimeMillis();
+    }
+}
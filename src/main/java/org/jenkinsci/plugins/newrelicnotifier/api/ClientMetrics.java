@@ -0,0 +1,114 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+/**
+ * Hooks through which the client reports request latency and outcomes. Nothing is recorded unless a
+ * {@link Recorder} is installed, which the plugin does when the Metrics plugin is present.
+ */
+public final class ClientMetrics {
+
+    public static final String GET_APPLICATIONS = "getApplications";
+    public static final String SEND_NOTIFICATION = "sendNotification";
+    public static final String SEND_NOTIFICATION_V2 = "sendNotificationV2";
+    public static final String SEND_NOTIFICATIONS_V2 = "sendNotificationsV2";
+
+    /**
+     * Receives the measurements. Implementations must be thread safe and must not block.
+     */
+    public interface Recorder {
+
+        /**
+         * @param operation One of the operation names defined by {@link ClientMetrics}
+         * @param european Whether the request went to the European region
+         * @param nanos Time taken by the call, including retries
+         * @param success Whether the call completed without an exception
+         */
+        void call(String operation, boolean european, long nanos, boolean success);
+
+        /**
+         * @param european Whether the request went to the European region
+         * @param status The HTTP status of a response, or {@code 0} if no response was received
+         */
+        void response(boolean european, int status);
+
+        /**
+         * @param european Whether the retried request goes to the European region
+         */
+        void retry(boolean european);
+
+        /**
+         * @param european Whether the throttled request goes to the European region
+         * @param nanos How long the request waits for the rate limit
+         */
+        void rateLimited(boolean european, long nanos);
+
+        /**
+         * @param hit Whether the applications were served from the cache
+         */
+        void applicationCache(boolean hit);
+    }
+
+    private static final Recorder NONE = new Recorder() {
+        @Override
+        public void call(String operation, boolean european, long nanos, boolean success) {
+        }
+
+        @Override
+        public void response(boolean european, int status) {
+        }
+
+        @Override
+        public void retry(boolean european) {
+        }
+
+        @Override
+        public void rateLimited(boolean european, long nanos) {
+        }
+
+        @Override
+        public void applicationCache(boolean hit) {
+        }
+    };
+
+    private static volatile Recorder recorder = NONE;
+
+    private ClientMetrics() {
+    }
+
+    public static Recorder get() {
+        return recorder;
+    }
+
+    /**
+     * @param recorder The recorder to report to, or {@code null} to stop recording
+     */
+    public static void setRecorder(Recorder recorder) {
+        ClientMetrics.recorder = recorder != null ? recorder : NONE;
+    }
+
+    static boolean isEuropean(String host) {
+        return NewRelicClientImpl.EUROPEAN_API_HOST.equals(host);
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import hudson.Util;
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Sends a deployment at most once per window. A deployment is identified by region, API key, application ID or
+ * entity GUID, revision or version, and commit.
+ * <p>
+ * Callers sending a deployment that is already in flight wait for that request and share its result. Deployments
+ * sent again within the window are answered with the recorded result without calling New Relic. Deployments that
+ * failed, or that New Relic did not confirm with a deployment ID, are forgotten, so they can be sent again right
+ * away. Waiting callers give up at the deadline of their {@link DeliveryTrace}, and are told about a failure with a
+ * {@link SharedNotificationException}, as only the caller that sent the deployment is to deliver it later. The record
+ * is shared by every client on this controller.
+ */
+public class CoalescingNewRelicClient implements NewRelicClient {
+
+    private static final Map<String, Recorded> RECENT = new ConcurrentHashMap<>();
+
+    private final NewRelicClient delegate;
+    private final long window;
+
+    /**
+     * @param delegate The client sending the deployments
+     * @param windowSeconds How long a sent deployment is remembered, {@code 0} to send every deployment
+     */
+    public CoalescingNewRelicClient(NewRelicClient delegate, int windowSeconds) {
+        this.delegate = delegate;
+        this.window = TimeUnit.SECONDS.toMillis(Math.max(0, windowSeconds));
+    }
+
+    @Override
+    public List<Application> getApplications(String apiKey, boolean european) throws IOException {
+        return delegate.getApplications(apiKey, european);
+    }
+
+    @Override
+    public List<Application> getApplications(String apiKey, boolean european, String nameFilter) throws IOException {
+        return delegate.getApplications(apiKey, european, nameFilter);
+    }
+
+    @Override
+    public String getApiEndpoint() {
+        return delegate.getApiEndpoint();
+    }
+
+    @Override
+    public String getApiEndpoint(boolean european) {
+        return delegate.getApiEndpoint(european);
+    }
+
+    @Override
+    public void sendNotification(String apiKey, String applicationId, String description, String revision,
+                                 String changelog, String user, boolean european) throws IOException {
+        if (window == 0) {
+            delegate.sendNotification(apiKey, applicationId, description, revision, changelog, user, european);
+            return;
+        }
+        String key = key(apiKey, european, applicationId, revision, null);
+        Recorded recorded = new Recorded();
+        Recorded leader = claim(key, recorded);
+        if (leader != null) {
+            await(leader, applicationId);
+            return;
+        }
+        try {
+            delegate.sendNotification(apiKey, applicationId, description, revision, changelog, user, european);
+            recorded.complete(key, new DeploymentResult(applicationId, null, null), false);
+        } catch (IOException | RuntimeException e) {
+            recorded.fail(key, e);
+            throw e;
+        }
+    }
+
+    @Override
+    public void sendNotificationV2(String apiKey, String changelog, String commit, String deepLink,
+                                   String deploymentType, String description, String entityGuid, String groupId,
+                                   String timestamp, String user, String version, boolean european,
+                                   TaskListener listener) throws IOException {
+        if (window == 0) {
+            delegate.sendNotificationV2(apiKey, changelog, commit, deepLink, deploymentType, description, entityGuid,
+                    groupId, timestamp, user, version, european, listener);
+            return;
+        }
+        String key = key(apiKey, european, entityGuid, version, commit);
+        Recorded recorded = new Recorded();
+        Recorded leader = claim(key, recorded);
+        if (leader != null) {
+            DeploymentResult result = await(leader, entityGuid);
+            listener.getLogger().println("Deployment already notified to New Relic"
+                    + (result.isSuccess() ? ". New Relic Deployment ID: " + result.getDeploymentId() : ""));
+            if (result.isSuccess()) {
+                DeliveryTrace.deployed(result.getDeploymentId());
+            }
+            return;
+        }
+        try {
+            String before = DeliveryTrace.deployed();
+            delegate.sendNotificationV2(apiKey, changelog, commit, deepLink, deploymentType, description, entityGuid,
+                    groupId, timestamp, user, version, european, listener);
+            String deploymentId = DeliveryTrace.deployed();
+            recorded.complete(key, new DeploymentResult(entityGuid,
+                    Objects.equals(deploymentId, before) ? null : deploymentId, null), true);
+        } catch (IOException | RuntimeException e) {
+            recorded.fail(key, e);
+            throw e;
+        }
+    }
+
+    @Override
+    public List<DeploymentResult> sendNotificationsV2(String apiKey, List<Deployment> deployments, boolean european,
+                                                      TaskListener listener) throws IOException {
+        if (window == 0) {
+            return delegate.sendNotificationsV2(apiKey, deployments, european, listener);
+        }
+
+        String[] keys = new String[deployments.size()];
+        Recorded[] records = new Recorded[deployments.size()];
+        Recorded[] leaders = new Recorded[deployments.size()];
+        List<Deployment> send = new ArrayList<>();
+        List<Integer> sent = new ArrayList<>();
+        for (int i = 0; i < deployments.size(); i++) {
+            Deployment d = deployments.get(i);
+            keys[i] = key(apiKey, european, d.getEntityGuid(), d.getVersion(), d.getCommit());
+            records[i] = new Recorded();
+            leaders[i] = claim(keys[i], records[i]);
+            if (leaders[i] == null) {
+                send.add(d);
+                sent.add(i);
+            }
+        }
+
+        DeploymentResult[] results = new DeploymentResult[deployments.size()];
+        if (!send.isEmpty()) {
+            List<DeploymentResult> batch;
+            try {
+                batch = delegate.sendNotificationsV2(apiKey, send, european, listener);
+            } catch (IOException | RuntimeException e) {
+                for (int i : sent) {
+                    records[i].fail(keys[i], e);
+                }
+                throw e;
+            }
+            complete(keys, records, sent, batch, results);
+        }
+
+        for (int i = 0; i < deployments.size(); i++) {
+            if (leaders[i] != null) {
+                String entityGuid = deployments.get(i).getEntityGuid();
+                try {
+                    DeploymentResult shared = await(leaders[i], entityGuid);
+                    results[i] = new DeploymentResult(entityGuid, shared.getDeploymentId(), shared.getError());
+                } catch (IOException e) {
+                    if (e instanceof InterruptedIOException) {
+                        throw e;
+                    }
+                    results[i] = new DeploymentResult(entityGuid, null, e.getMessage());
+                }
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Records the results of the deployments sent by this caller.
+     */
+    private static void complete(String[] keys, Recorded[] records, List<Integer> sent, List<DeploymentResult> batch,
+                                 DeploymentResult[] results) {
+        for (int j = 0; j < sent.size(); j++) {
+            int i = sent.get(j);
+            DeploymentResult result = batch.get(j);
+            results[i] = result;
+            records[i].complete(keys[i], result, true);
+        }
+    }
+
+    /**
+     * Registers the caller's record for the deployment, unless it is already in flight or was recently sent.
+     *
+     * @return The record to wait for, or {@code null} if the caller must send the deployment and complete its record
+     */
+    private Recorded claim(String key, Recorded mine) {
+        long now = System.currentTimeMillis();
+        RECENT.values().removeIf(r -> r.isExpired(now, window));
+        while (true) {
+            Recorded existing = RECENT.putIfAbsent(key, mine);
+            if (existing == null) {
+                return null;
+            }
+            if (!existing.isExpired(now, window)) {
+                return existing;
+            }
+            RECENT.remove(key, existing);
+        }
+    }
+
+    /**
+     * Waits for the outcome of a deployment sent by another caller, at most until the current trace's deadline.
+     */
+    private static DeploymentResult await(Recorded recorded, String target) throws IOException {
+        long remaining = DeliveryTrace.remainingNanos();
+        try {
+            return remaining == Long.MAX_VALUE
+                    ? recorded.result.get()
+                    : recorded.result.get(remaining, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            throw new DeadlineExceededException(
+                    "New Relic notification deadline exceeded while waiting for the notification of " + target);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the notification of " + target);
+        } catch (ExecutionException e) {
+            throw new SharedNotificationException(target, e.getCause());
+        }
+    }
+
+    private static String key(String apiKey, boolean european, String target, String version, String commit) {
+        return String.join("\n", european ? "eu" : "us", Util.getDigestOf(apiKey),
+                Util.fixNull(target), Util.fixNull(version), Util.fixNull(commit));
+    }
+
+    /**
+     * A deployment in flight or sent recently.
+     */
+    private static final class Recorded {
+        private final CompletableFuture<DeploymentResult> result = new CompletableFuture<>();
+        private volatile long completedAt = Long.MAX_VALUE;
+
+        /**
+         * @param requireId Whether the deployment is only remembered if New Relic returned its ID
+         */
+        void complete(String key, DeploymentResult value, boolean requireId) {
+            if (value.getError() != null || requireId && !value.isSuccess()) {
+                // let the deployment be sent again, but hand the outcome to callers already waiting for it
+                RECENT.remove(key, this);
+            }
+            completedAt = System.currentTimeMillis();
+            result.complete(value);
+        }
+
+        void fail(String key, Throwable t) {
+            RECENT.remove(key, this);
+            result.completeExceptionally(t);
+        }
+
+        boolean isExpired(long now, long window) {
+            return completedAt != Long.MAX_VALUE && now - completedAt >= window;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Compact list of applications, holding ids as primitive longs and names in a plain array with duplicate
+ * names shared. {@link Application} instances are only created when an element is read.
+ */
+public class CompactApplicationList extends AbstractList<Application> implements RandomAccess {
+
+    private long[] ids;
+    private String[] names;
+    private int size;
+    private final Map<String, String> uniqueNames = new HashMap<>();
+
+    public CompactApplicationList() {
+        this(NewRelicClientImpl.PAGE_SIZE);
+    }
+
+    public CompactApplicationList(int initialCapacity) {
+        ids = new long[Math.max(initialCapacity, 1)];
+        names = new String[ids.length];
+    }
+
+    /**
+     * Appends an application.
+     *
+     * @param id The application id
+     * @param name The application name
+     */
+    public void add(long id, String name) {
+        if (size == ids.length) {
+            int capacity = size * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            names = Arrays.copyOf(names, capacity);
+        }
+        ids[size] = id;
+        names[size] = name == null ? null : uniqueNames.computeIfAbsent(name, n -> n);
+        size++;
+        modCount++;
+    }
+
+    @Override
+    public boolean add(Application application) {
+        add(Long.parseLong(application.getId()), application.getName());
+        return true;
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends Application> applications) {
+        if (applications instanceof CompactApplicationList other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.ids[i], other.names[i]);
+            }
+            return other.size > 0;
+        }
+        return super.addAll(applications);
+    }
+
+    /**
+     * Shrinks the backing arrays to the current size and releases the bookkeeping used to share names.
+     */
+    public void trimToSize() {
+        ids = Arrays.copyOf(ids, Math.max(size, 1));
+        names = Arrays.copyOf(names, ids.length);
+        uniqueNames.clear();
+    }
+
+    public long getId(int index) {
+        checkIndex(index);
+        return ids[index];
+    }
+
+    public String getName(int index) {
+        checkIndex(index);
+        return names[index];
+    }
+
+    @Override
+    public Application get(int index) {
+        checkIndex(index);
+        return new Application(Long.toString(ids[index]), names[index]);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import org.apache.http.client.methods.HttpRequestBase;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects what the synchronous client calls made on the current thread cost: the number of HTTP attempts and the
+ * time spent building request payloads and talking to New Relic. A trace may also {@link #limit limit} those calls
+ * with request timeouts and a deadline shared by every request and retry, and {@link #cancel() cancel} them from
+ * another thread. Calls made while no trace is started use the default {@link Timeouts} and are not traced.
+ * <pre>
+ * try (DeliveryTrace trace = DeliveryTrace.start().limit(timeouts, deadline)) {
+ *     client.sendNotificationsV2(apiKey, deployments, european, listener);
+ *     attempts = trace.getAttempts();
+ * }
+ * </pre>
+ */
+public final class DeliveryTrace implements AutoCloseable {
+
+    private static final ThreadLocal<DeliveryTrace> CURRENT = new ThreadLocal<>();
+
+    private final DeliveryTrace outer;
+    private int attempts;
+    private long serializingNanos;
+    private long networkNanos;
+    private String deploymentId;
+    private Timeouts timeouts = Timeouts.DEFAULT;
+    private boolean bounded;
+    private long deadline;
+    private volatile boolean cancelled;
+    private volatile HttpRequestBase request;
+
+    private DeliveryTrace(DeliveryTrace outer) {
+        this.outer = outer;
+    }
+
+    /**
+     * Starts tracing the calls made on the current thread until the trace is closed.
+     */
+    public static DeliveryTrace start() {
+        DeliveryTrace trace = new DeliveryTrace(CURRENT.get());
+        CURRENT.set(trace);
+        return trace;
+    }
+
+    /**
+     * @param timeouts Timeouts of each request
+     * @param deadline {@link System#nanoTime()} after which no request is sent or retried, and requests still
+     *                 running time out
+     * @return This trace
+     */
+    public DeliveryTrace limit(Timeouts timeouts, long deadline) {
+        this.timeouts = timeouts;
+        this.bounded = true;
+        this.deadline = deadline;
+        return this;
+    }
+
+    /**
+     * @param timeouts Timeouts of each request
+     * @return This trace
+     */
+    public DeliveryTrace limit(Timeouts timeouts) {
+        this.timeouts = timeouts;
+        return this;
+    }
+
+    /**
+     * Aborts the request running under this trace, if any, and fails the following ones. May be called from any
+     * thread.
+     */
+    public void cancel() {
+        cancelled = true;
+        HttpRequestBase running = request;
+        if (running != null) {
+            running.abort();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (outer != null) {
+            CURRENT.set(outer);
+        } else {
+            CURRENT.remove();
+        }
+    }
+
+    static void serialized(long nanos) {
+        DeliveryTrace trace = CURRENT.get();
+        if (trace != null) {
+            trace.serializingNanos += nanos;
+        }
+    }
+
+    static void attempted(long nanos) {
+        DeliveryTrace trace = CURRENT.get();
+        if (trace != null) {
+            trace.request = null;
+            trace.attempts++;
+            trace.networkNanos += nanos;
+        }
+    }
+
+    /**
+     * Applies the timeouts of the current trace to a request about to be sent, shortened to what is left of its
+     * deadline, and makes the request abortable by {@link #cancel()}.
+     *
+     * @throws DeadlineExceededException if the deadline has passed or the trace was cancelled
+     */
+    static void sending(HttpRequestBase request) throws DeadlineExceededException {
+        DeliveryTrace trace = CURRENT.get();
+        Timeouts timeouts = trace != null ? trace.timeouts : Timeouts.DEFAULT;
+        long remaining = trace != null ? trace.checkRemaining() : Long.MAX_VALUE;
+        request.setConfig(timeouts.toRequestConfig(
+                remaining == Long.MAX_VALUE ? Long.MAX_VALUE : Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining))));
+        if (trace != null) {
+            trace.request = request;
+            if (trace.cancelled) {
+                request.abort();
+            }
+        }
+    }
+
+    /**
+     * Waits before a retry.
+     *
+     * @throws DeadlineExceededException if the current trace's deadline passes before the wait is over
+     */
+    static void pause(RetryPolicy policy, long delay) throws InterruptedIOException {
+        DeliveryTrace trace = CURRENT.get();
+        if (trace != null && TimeUnit.MILLISECONDS.toNanos(delay) >= trace.checkRemaining()) {
+            throw new DeadlineExceededException("New Relic notification deadline exceeded, not retrying");
+        }
+        policy.sleep(delay);
+    }
+
+    /**
+     * @return Nanoseconds left before the deadline
+     * @throws DeadlineExceededException if there are none left
+     */
+    private long checkRemaining() throws DeadlineExceededException {
+        if (cancelled) {
+            throw new DeadlineExceededException("New Relic notification cancelled");
+        }
+        if (!bounded) {
+            return Long.MAX_VALUE;
+        }
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+            throw new DeadlineExceededException("New Relic notification deadline exceeded");
+        }
+        return remaining;
+    }
+
+    /**
+     * @return The timeouts of the current trace
+     */
+    static Timeouts currentTimeouts() {
+        DeliveryTrace trace = CURRENT.get();
+        return trace != null ? trace.timeouts : Timeouts.DEFAULT;
+    }
+
+    /**
+     * @return Nanoseconds left before the current trace's deadline, or {@link Long#MAX_VALUE} if there is none
+     * @throws DeadlineExceededException if the deadline has passed or the trace was cancelled
+     */
+    static long remainingNanos() throws DeadlineExceededException {
+        DeliveryTrace trace = CURRENT.get();
+        return trace != null ? trace.checkRemaining() : Long.MAX_VALUE;
+    }
+
+    /**
+     * Adds what calls traced on another JVM cost to the current trace.
+     */
+    static void merge(int attempts, long serializingNanos, long networkNanos, String deploymentId) {
+        DeliveryTrace trace = CURRENT.get();
+        if (trace != null) {
+            trace.attempts += attempts;
+            trace.serializingNanos += serializingNanos;
+            trace.networkNanos += networkNanos;
+            if (deploymentId != null) {
+                trace.deploymentId = deploymentId;
+            }
+        }
+    }
+
+    /**
+     * @return The deployment ID recorded by the current trace so far, or {@code null} if there is none
+     */
+    static String deployed() {
+        DeliveryTrace trace = CURRENT.get();
+        return trace != null ? trace.deploymentId : null;
+    }
+
+    static void deployed(String deploymentId) {
+        DeliveryTrace trace = CURRENT.get();
+        if (trace != null) {
+            trace.deploymentId = deploymentId;
+        }
+    }
+
+    /**
+     * @return The number of HTTP requests sent, including retries
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @return Time spent building request payloads
+     */
+    public long getSerializingNanos() {
+        return serializingNanos;
+    }
+
+    /**
+     * @return Time spent sending requests and reading responses, not counting the waits between retries
+     */
+    public long getNetworkNanos() {
+        return networkNanos;
+    }
+
+    /**
+     * @return The ID of the deployment recorded by the last single change tracking notification, if any
+     */
+    public String getDeploymentId() {
+        return deploymentId;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import java.io.Serializable;
+
+/**
+ * A change tracking deployment marker to record through NerdGraph.
+ */
+public class Deployment implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String changelog;
+    private final String commit;
+    private final String deepLink;
+    private final String deploymentType;
+    private final String description;
+    private final String entityGuid;
+    private final String groupId;
+    private final String timestamp;
+    private final String user;
+    private final String version;
+
+    public Deployment(String changelog, String commit, String deepLink, String deploymentType, String description,
+                      String entityGuid, String groupId, String timestamp, String user, String version) {
+        this.changelog = changelog;
+        this.commit = commit;
+        this.deepLink = deepLink;
+        this.deploymentType = deploymentType;
+        this.description = description;
+        this.entityGuid = entityGuid;
+        this.groupId = groupId;
+        this.timestamp = timestamp;
+        this.user = user;
+        this.version = version;
+    }
+
+    public String getChangelog() {
+        return changelog;
+    }
+
+    public String getCommit() {
+        return commit;
+    }
+
+    public String getDeepLink() {
+        return deepLink;
+    }
+
+    public String getDeploymentType() {
+        return deploymentType;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public String getEntityGuid() {
+        return entityGuid;
+    }
+
+    public String getGroupId() {
+        return groupId;
+    }
+
+    public String getTimestamp() {
+        return timestamp;
+    }
+
+    public String getUser() {
+        return user;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+}
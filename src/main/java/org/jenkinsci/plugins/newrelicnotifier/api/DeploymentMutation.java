@@ -0,0 +1,166 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes NerdGraph requests recording deployments. The mutation documents are fixed and the deployments are sent as
+ * GraphQL variables, written straight to UTF-8 bytes, so values never need escaping by hand. Requests may be gzip
+ * compressed as they are written, so a long changelog is never held uncompressed.
+ */
+final class DeploymentMutation {
+
+    static final String INPUT_TYPE = "ChangeTrackingDeploymentInput!";
+
+    static final String QUERY = "mutation ($deployment: " + INPUT_TYPE + ") "
+            + "{changeTrackingCreateDeployment(deployment: $deployment) {deploymentId}}";
+
+    /**
+     * Batch documents by number of deployments, built once per size.
+     */
+    private static final Map<Integer, String> BATCH_QUERIES = new ConcurrentHashMap<>();
+
+    private DeploymentMutation() {
+    }
+
+    /**
+     * @return The request recording a single deployment
+     */
+    static byte[] write(Deployment deployment) {
+        return write(deployment, false);
+    }
+
+    /**
+     * @param gzip Whether to compress the request
+     * @return The request recording a single deployment
+     */
+    static byte[] write(Deployment deployment, boolean gzip) {
+        return write(QUERY, gzip, writer -> writeInput(writer.name("deployment"), deployment));
+    }
+
+    /**
+     * @return The request recording every deployment, each under its own alias
+     *         ({@value NewRelicClientImpl#BATCH_ALIAS_PREFIX}0, {@value NewRelicClientImpl#BATCH_ALIAS_PREFIX}1, ...)
+     */
+    static byte[] write(List<Deployment> deployments) {
+        return write(deployments, false);
+    }
+
+    /**
+     * @param gzip Whether to compress the request
+     * @return The request recording every deployment, each under its own alias
+     */
+    static byte[] write(List<Deployment> deployments, boolean gzip) {
+        return write(batchQuery(deployments.size()), gzip, writer -> {
+            for (int i = 0; i < deployments.size(); i++) {
+                writeInput(writer.name(NewRelicClientImpl.BATCH_ALIAS_PREFIX + i), deployments.get(i));
+            }
+        });
+    }
+
+    static String batchQuery(int size) {
+        return BATCH_QUERIES.computeIfAbsent(size, n -> {
+            StringBuilder variables = new StringBuilder();
+            StringBuilder mutations = new StringBuilder();
+            for (int i = 0; i < n; i++) {
+                String alias = NewRelicClientImpl.BATCH_ALIAS_PREFIX + i;
+                if (i > 0) {
+                    variables.append(", ");
+                    mutations.append(' ');
+                }
+                variables.append('$').append(alias).append(": ").append(INPUT_TYPE);
+                mutations.append(alias).append(": changeTrackingCreateDeployment(deployment: $")
+                        .append(alias).append(") {deploymentId}");
+            }
+            return "mutation (" + variables + ") {" + mutations + "}";
+        });
+    }
+
+    @FunctionalInterface
+    private interface VariablesWriter {
+        void write(JsonWriter writer) throws IOException;
+    }
+
+    private static byte[] write(String query, boolean gzip, VariablesWriter variables) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(512);
+        try (OutputStream target = gzip ? new GZIPOutputStream(out, 8192) : out;
+             JsonWriter writer = new JsonWriter(new OutputStreamWriter(target, StandardCharsets.UTF_8))) {
+            writer.beginObject();
+            writer.name("query").value(query);
+            writer.name("variables").beginObject();
+            variables.write(writer);
+            writer.endObject();
+            writer.endObject();
+        } catch (IOException e) {
+            // cannot happen when writing to memory
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes a deployment input, leaving out blank fields so New Relic applies its defaults.
+     */
+    private static void writeInput(JsonWriter writer, Deployment d) throws IOException {
+        writer.beginObject();
+        writeField(writer, "commit", d.getCommit());
+        writeField(writer, "changelog", d.getChangelog());
+        writeField(writer, "description", d.getDescription());
+        writeField(writer, "user", d.getUser());
+        writeField(writer, "deepLink", d.getDeepLink());
+        writeField(writer, "deploymentType", d.getDeploymentType());
+        writeField(writer, "entityGuid", d.getEntityGuid());
+        writeField(writer, "version", d.getVersion());
+        writeField(writer, "groupId", d.getGroupId());
+        String timestamp = d.getTimestamp();
+        if (timestamp != null && !timestamp.isBlank()) {
+            // EpochMilliseconds is a number; anything else is passed on for NerdGraph to reject
+            writer.name("timestamp");
+            try {
+                writer.value(Long.parseLong(timestamp.trim()));
+            } catch (NumberFormatException e) {
+                writer.value(timestamp);
+            }
+        }
+        writer.endObject();
+    }
+
+    private static void writeField(JsonWriter writer, String name, String value) throws IOException {
+        if (value != null && !value.isBlank()) {
+            writer.name(name).value(value);
+        }
+    }
+}
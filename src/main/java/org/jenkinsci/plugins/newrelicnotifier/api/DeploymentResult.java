@@ -0,0 +1,84 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+
+import java.io.Serializable;
+
+/**
+ * Outcome of recording a single {@link Deployment}. A result with neither a deployment ID nor an error means
+ * New Relic could not be reached to confirm the deployment after all attempts.
+ */
+public class DeploymentResult implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String entityGuid;
+    private final String deploymentId;
+    private final String error;
+    private final boolean retryable;
+
+    public DeploymentResult(String entityGuid, String deploymentId, String error) {
+        this(entityGuid, deploymentId, error, false);
+    }
+
+    public DeploymentResult(String entityGuid, String deploymentId, String error, boolean retryable) {
+        this.entityGuid = entityGuid;
+        this.deploymentId = deploymentId;
+        this.error = error;
+        this.retryable = retryable;
+    }
+
+    public String getEntityGuid() {
+        return entityGuid;
+    }
+
+    /**
+     * @return The ID New Relic assigned to the deployment marker, or {@code null} if none was recorded
+     */
+    @CheckForNull
+    public String getDeploymentId() {
+        return deploymentId;
+    }
+
+    /**
+     * @return The error reported by NerdGraph for this deployment, or {@code null} if none was reported
+     */
+    @CheckForNull
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * @return Whether the error may go away when the deployment is sent again
+     */
+    public boolean isRetryable() {
+        return retryable;
+    }
+
+    public boolean isSuccess() {
+        return deploymentId != null;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.util.SystemProperties;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs blocking notification work on a virtual thread per task when the JVM supports them (Java 21 and later), and
+ * on a pool of platform daemon threads otherwise. Either way at most {@code concurrency} tasks run at once; the others
+ * wait for a permit without holding a platform thread when virtual threads are used.
+ */
+public final class DispatchExecutor extends AbstractExecutorService {
+
+    /**
+     * Set to {@code false} to always use platform threads.
+     */
+    static final boolean VIRTUAL_THREADS =
+            SystemProperties.getBoolean(DispatchExecutor.class.getName() + ".virtualThreads", true);
+
+    private static final Logger LOGGER = Logger.getLogger(DispatchExecutor.class.getName());
+
+    private final ExecutorService delegate;
+    private final Semaphore permits;
+    private final boolean virtual;
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private DispatchExecutor(ExecutorService delegate, int concurrency, boolean virtual) {
+        this.delegate = delegate;
+        this.permits = new Semaphore(concurrency);
+        this.virtual = virtual;
+    }
+
+    /**
+     * @param name Prefix of the thread names
+     * @param concurrency Maximum number of tasks running at once
+     */
+    public static DispatchExecutor create(String name, int concurrency) {
+        ExecutorService virtual = VIRTUAL_THREADS ? newVirtualThreadPerTaskExecutor(name) : null;
+        if (virtual != null) {
+            return new DispatchExecutor(virtual, concurrency, true);
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(concurrency, concurrency,
+                60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), name));
+        executor.allowCoreThreadTimeOut(true);
+        return new DispatchExecutor(executor, concurrency, false);
+    }
+
+    /**
+     * Looks up the virtual thread API reflectively, as the plugin still runs on Java 17.
+     *
+     * @return An executor starting a named virtual thread per task, or {@code null} if the JVM has none
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor(String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> ofVirtual = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            builder = ofVirtual.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            ThreadFactory factory = (ThreadFactory) ofVirtual.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.log(Level.FINE, "Virtual threads are not available, using platform threads for " + name, e);
+            return null;
+        }
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        pending.incrementAndGet();
+        try {
+            delegate.execute(() -> {
+                try {
+                    permits.acquire();
+                } catch (InterruptedException e) {
+                    // cancelled or shut down while waiting for a permit
+                    pending.decrementAndGet();
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                try {
+                    command.run();
+                } finally {
+                    permits.release();
+                    pending.decrementAndGet();
+                }
+            });
+        } catch (RuntimeException e) {
+            pending.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * @return Whether tasks run on virtual threads
+     */
+    boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * @return The number of tasks waiting for or running on a thread
+     */
+    public int getQueueDepth() {
+        return pending.get();
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return delegate.awaitTermination(timeout, unit);
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import org.apache.http.client.ClientProtocolException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The deployment IDs and errors of a NerdGraph response, read with a streaming parser.
+ */
+public final class NerdGraphResponse {
+
+    /**
+     * {@code errorClass} or {@code code} extension values of errors that may go away when the request is sent again.
+     */
+    private static final Set<String> RETRYABLE_ERRORS = Set.of(
+            "TIMEOUT", "SERVER_ERROR", "INTERNAL_SERVER_ERROR", "SERVICE_UNAVAILABLE", "TOO_MANY_REQUESTS");
+
+    static final NerdGraphResponse EMPTY = new NerdGraphResponse(Collections.emptyMap(), Collections.emptyList());
+
+    private final Map<String, String> deploymentIds;
+    private final List<Error> errors;
+
+    private NerdGraphResponse(Map<String, String> deploymentIds, List<Error> errors) {
+        this.deploymentIds = deploymentIds;
+        this.errors = errors;
+    }
+
+    /**
+     * @param alias The mutation alias, or field name when it has none
+     * @return The deployment ID recorded by the mutation, or {@code null}
+     */
+    @CheckForNull
+    public String getDeploymentId(String alias) {
+        return deploymentIds.get(alias);
+    }
+
+    public List<Error> getErrors() {
+        return errors;
+    }
+
+    /**
+     * @param alias The mutation alias, or field name when it has none
+     * @return The first error of the mutation, else the first error not tied to any mutation, or {@code null}
+     */
+    @CheckForNull
+    public Error getError(String alias) {
+        Error general = null;
+        for (Error error : errors) {
+            if (alias.equals(error.getAlias())) {
+                return error;
+            }
+            if (general == null && error.getAlias() == null) {
+                general = error;
+            }
+        }
+        return general;
+    }
+
+    /**
+     * Reads a NerdGraph response, keeping only deployment IDs and errors.
+     *
+     * @throws IOException when the response cannot be read or is not valid JSON
+     */
+    public static NerdGraphResponse parse(Reader reader) throws IOException {
+        Map<String, String> deploymentIds = new HashMap<>();
+        List<Error> errors = new ArrayList<>();
+        JsonReader json = new JsonReader(reader);
+        try {
+            json.beginObject();
+            while (json.hasNext()) {
+                String name = json.nextName();
+                if ("data".equals(name) && json.peek() == JsonToken.BEGIN_OBJECT) {
+                    json.beginObject();
+                    while (json.hasNext()) {
+                        String alias = json.nextName();
+                        String deploymentId = readDeploymentId(json);
+                        if (deploymentId != null) {
+                            deploymentIds.put(alias, deploymentId);
+                        }
+                    }
+                    json.endObject();
+                } else if ("errors".equals(name) && json.peek() == JsonToken.BEGIN_ARRAY) {
+                    json.beginArray();
+                    while (json.hasNext()) {
+                        if (json.peek() == JsonToken.BEGIN_OBJECT) {
+                            errors.add(readError(json));
+                        } else {
+                            json.skipValue();
+                        }
+                    }
+                    json.endArray();
+                } else {
+                    json.skipValue();
+                }
+            }
+            json.endObject();
+        } catch (IllegalStateException e) {
+            throw new ClientProtocolException("Unexpected response from New Relic: " + e.getMessage(), e);
+        }
+        return new NerdGraphResponse(deploymentIds, errors);
+    }
+
+    private static String readDeploymentId(JsonReader json) throws IOException {
+        if (json.peek() != JsonToken.BEGIN_OBJECT) {
+            json.skipValue();
+            return null;
+        }
+        String deploymentId = null;
+        json.beginObject();
+        while (json.hasNext()) {
+            if ("deploymentId".equals(json.nextName()) && json.peek() == JsonToken.STRING) {
+                deploymentId = json.nextString();
+            } else {
+                json.skipValue();
+            }
+        }
+        json.endObject();
+        return deploymentId;
+    }
+
+    private static Error readError(JsonReader json) throws IOException {
+        String message = null;
+        String alias = null;
+        boolean retryable = false;
+        json.beginObject();
+        while (json.hasNext()) {
+            String name = json.nextName();
+            if ("message".equals(name) && json.peek() == JsonToken.STRING) {
+                message = json.nextString();
+            } else if ("path".equals(name) && json.peek() == JsonToken.BEGIN_ARRAY) {
+                json.beginArray();
+                if (json.hasNext() && json.peek() == JsonToken.STRING) {
+                    alias = json.nextString();
+                }
+                while (json.hasNext()) {
+                    json.skipValue();
+                }
+                json.endArray();
+            } else if ("extensions".equals(name) && json.peek() == JsonToken.BEGIN_OBJECT) {
+                json.beginObject();
+                while (json.hasNext()) {
+                    String extension = json.nextName();
+                    if (("errorClass".equals(extension) || "code".equals(extension)) && json.peek() == JsonToken.STRING) {
+                        retryable |= RETRYABLE_ERRORS.contains(json.nextString());
+                    } else {
+                        json.skipValue();
+                    }
+                }
+                json.endObject();
+            } else {
+                json.skipValue();
+            }
+        }
+        json.endObject();
+        return new Error(message != null ? message : "Unknown NerdGraph error", alias, retryable);
+    }
+
+    /**
+     * A GraphQL error.
+     */
+    public static final class Error {
+        private final String message;
+        private final String alias;
+        private final boolean retryable;
+
+        Error(String message, String alias, boolean retryable) {
+            this.message = message;
+            this.alias = alias;
+            this.retryable = retryable;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * @return The alias of the mutation that failed, or {@code null} if the error is about the whole request
+         */
+        @CheckForNull
+        public String getAlias() {
+            return alias;
+        }
+
+        /**
+         * @return Whether sending the request again may succeed
+         */
+        public boolean isRetryable() {
+            return retryable;
+        }
+    }
+}
@@ -26,10 +26,17 @@ package org.jenkinsci.plugins.newrelicnotifier.api;
 import hudson.model.TaskListener;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * REST client interface for the New Relic API.
+ * <p>
+ * The {@code Async} methods run the synchronous ones without blocking the caller, on a bounded pool shared by all
+ * clients, within the timeouts and deadline of the caller's {@link DeliveryTrace}. Failures complete the returned future exceptionally with the
+ * {@link IOException} the synchronous method threw. Implementations only need to provide the synchronous methods.
  */
 public interface NewRelicClient {
 
@@ -44,6 +51,30 @@ public interface NewRelicClient {
      */
     List<Application> getApplications(String apiKey, boolean european) throws IOException;
 
+    /**
+     * Get the applications whose name contains the given filter, ignoring case. Implementations may only return the
+     * first page of matches.
+     * <p>
+     * The default implementation filters all applications returned by {@link #getApplications(String, boolean)}.
+     *
+     * @param apiKey New Relic User API key
+     * @param european Is the User API key created under a European account
+     * @param nameFilter Part of the application name to look for
+     * @return Applications matching the filter
+     * @throws IOException when the applications cannot be retrieved
+     */
+    default List<Application> getApplications(String apiKey, boolean european, String nameFilter) throws IOException {
+        String filter = nameFilter.toLowerCase(Locale.ROOT);
+        List<Application> matches = new ArrayList<>();
+        for (Application application : getApplications(apiKey, european)) {
+            String name = application.getName();
+            if (name != null && name.toLowerCase(Locale.ROOT).contains(filter)) {
+                matches.add(application);
+            }
+        }
+        return matches;
+    }
+
     /**
      * Submit deployment notification
      *
@@ -107,4 +138,119 @@ public interface NewRelicClient {
             boolean european,
             TaskListener listener
     ) throws IOException;
+
+    /**
+     * Submit several deployment notifications in a single NerdGraph request.
+     * <p>
+     * The default implementation sends them one at a time with
+     * {@link #sendNotificationV2(String, String, String, String, String, String, String, String, String, String, String, boolean, TaskListener)}.
+     * Deployment IDs are only known when the caller runs a {@link DeliveryTrace}. Once a deployment has been sent,
+     * failures of the following ones are reported in their results instead of being thrown.
+     *
+     * @param apiKey New Relic API key shared by all deployments
+     * @param deployments The deployments to record
+     * @param european Is the User API key created under a European account
+     * @param listener Listener for progress messages
+     * @return One result per deployment, in the same order as {@code deployments}
+     * @throws IOException when HttpClient is not able to be closed or unexpected status code received
+     * @see <a href="https://docs.newrelic.com/docs/apm/apis/requirements/api-key">https://docs.newrelic.com/docs/apm/apis/requirements/api-key</a>
+     */
+    default List<DeploymentResult> sendNotificationsV2(
+            String apiKey,
+            List<Deployment> deployments,
+            boolean european,
+            TaskListener listener
+    ) throws IOException {
+        List<DeploymentResult> results = new ArrayList<>(deployments.size());
+        for (Deployment d : deployments) {
+            DeliveryTrace.deployed(null);
+            try {
+                sendNotificationV2(apiKey, d.getChangelog(), d.getCommit(), d.getDeepLink(), d.getDeploymentType(),
+                        d.getDescription(), d.getEntityGuid(), d.getGroupId(), d.getTimestamp(), d.getUser(),
+                        d.getVersion(), european, listener);
+            } catch (IOException e) {
+                if (results.isEmpty()) {
+                    throw e;
+                }
+                boolean retryable = e instanceof NerdGraphException nge ? nge.isRetryable() : RetryPolicy.isRetryable(e);
+                results.add(new DeploymentResult(d.getEntityGuid(), null, String.valueOf(e.getMessage()), retryable));
+                continue;
+            }
+            results.add(new DeploymentResult(d.getEntityGuid(), DeliveryTrace.deployed(), null));
+        }
+        return results;
+    }
+
+    /**
+     * Asynchronous variant of {@link #getApplications(String, boolean)}.
+     *
+     * @param apiKey New Relic User API key
+     * @param european Is the User API key created under a European account
+     * @return The applications available for the supplied API key
+     */
+    default CompletableFuture<List<Application>> getApplicationsAsync(String apiKey, boolean european) {
+        return AsyncCall.supply(() -> getApplications(apiKey, european));
+    }
+
+    /**
+     * Asynchronous variant of {@link #sendNotification(String, String, String, String, String, String, boolean)}.
+     *
+     * @return Completed once New Relic has recorded the deployment
+     */
+    default CompletableFuture<Void> sendNotificationAsync(
+            String apiKey,
+            String applicationId,
+            String description,
+            String revision,
+            String changelog,
+            String user,
+            boolean european
+    ) {
+        return AsyncCall.supply(() -> {
+            sendNotification(apiKey, applicationId, description, revision, changelog, user, european);
+            return null;
+        });
+    }
+
+    /**
+     * Asynchronous variant of
+     * {@link #sendNotificationV2(String, String, String, String, String, String, String, String, String, String, String, boolean, TaskListener)}.
+     *
+     * @return The deployment ID, or {@code null} if New Relic did not return one
+     */
+    default CompletableFuture<String> sendNotificationV2Async(
+            String apiKey,
+            String changelog,
+            String commit,
+            String deepLink,
+            String deploymentType,
+            String description,
+            String entityGuid,
+            String groupId,
+            String timestamp,
+            String user,
+            String version,
+            boolean european,
+            TaskListener listener
+    ) {
+        return AsyncCall.supply(() -> {
+            sendNotificationV2(apiKey, changelog, commit, deepLink, deploymentType, description, entityGuid, groupId,
+                    timestamp, user, version, european, listener);
+            return DeliveryTrace.deployed();
+        });
+    }
+
+    /**
+     * Asynchronous variant of {@link #sendNotificationsV2(String, List, boolean, TaskListener)}.
+     *
+     * @return One result per deployment, in the same order as {@code deployments}
+     */
+    default CompletableFuture<List<DeploymentResult>> sendNotificationsV2Async(
+            String apiKey,
+            List<Deployment> deployments,
+            boolean european,
+            TaskListener listener
+    ) {
+        return AsyncCall.supply(() -> sendNotificationsV2(apiKey, deployments, european, listener));
+    }
 }
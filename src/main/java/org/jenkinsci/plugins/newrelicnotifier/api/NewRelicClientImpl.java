@@ -24,26 +24,42 @@
 package org.jenkinsci.plugins.newrelicnotifier.api;
 
 import hudson.util.Secret;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
 import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.net.SocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import hudson.model.TaskListener;
-import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpStatus;
+import org.apache.http.NameValuePair;
 import org.apache.http.StatusLine;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
@@ -55,19 +71,36 @@ import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.utils.URIBuilder;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.ProxyAuthenticationStrategy;
 import org.apache.http.impl.conn.DefaultProxyRoutePlanner;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.ssl.SSLContexts;
+import org.apache.http.util.EntityUtils;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonObject;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 import hudson.ProxyConfiguration;
+import hudson.init.Terminator;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
 
 /**
  * REST client implementation for the New Relic API.
@@ -86,50 +119,167 @@ public class NewRelicClientImpl implements NewRelicClient {
     public static final String APPLICATIONS_ENDPOINT = "/v2/applications.json";
 
     public static final String PAGE_PARAMETER = "page";
+    public static final String NAME_FILTER_PARAMETER = "filter[name]";
     public static final String GRAPHQL_URL = API_HOST;
     public static final String EUROPEAN_GRAPHQL_URL = EUROPEAN_API_HOST;
 
     public static final int PAGE_SIZE = 200;
 
+    /**
+     * The field of a single deployment mutation in the response.
+     */
+    static final String MUTATION = "changeTrackingCreateDeployment";
+
+    /**
+     * Maximum number of characters of an error response kept for the error message.
+     */
+    static final int MAX_ERROR_BODY = 4096;
+
+    /**
+     * Prefix of the alias given to each mutation in a batched NerdGraph request.
+     */
+    public static final String BATCH_ALIAS_PREFIX = "d";
+
+    /**
+     * Maximum number of pooled connections kept open to a single New Relic host.
+     */
+    public static final int MAX_CONNECTIONS_PER_ROUTE =
+            SystemProperties.getInteger(NewRelicClientImpl.class.getName() + ".maxConnectionsPerRoute", 10);
+
+    /**
+     * Seconds a pooled connection may stay idle before it is evicted.
+     */
+    public static final long IDLE_CONNECTION_TIMEOUT =
+            SystemProperties.getLong(NewRelicClientImpl.class.getName() + ".idleConnectionTimeout", 30L);
+
+    /**
+     * Upper bound in seconds for how long an idle connection is kept alive, regardless of what the server allows.
+     */
+    public static final long MAX_KEEP_ALIVE =
+            SystemProperties.getLong(NewRelicClientImpl.class.getName() + ".maxKeepAlive", 60L);
+
+    /**
+     * Maximum number of application pages fetched concurrently, shared by all callers on this controller.
+     */
+    public static final int PAGE_CONCURRENCY =
+            SystemProperties.getInteger(NewRelicClientImpl.class.getName() + ".pageConcurrency", 4);
+
+    /**
+     * NerdGraph requests whose changelogs add up to at least this many characters are sent gzip compressed, or
+     * never if {@code 0}.
+     */
+    public static final int COMPRESS_CHANGELOG_CHARS =
+            SystemProperties.getInteger(NewRelicClientImpl.class.getName() + ".compressChangelogChars", 8192);
+
+    private static final Logger LOGGER = Logger.getLogger(NewRelicClientImpl.class.getName());
+
+    private static final ExecutorService PAGE_FETCHER = createPageFetcher();
+
+    /**
+     * Long-lived clients, one per New Relic host (i.e. region), shared by every notification on this controller.
+     */
+    private static final Map<String, SharedHttpClient> HTTP_CLIENTS = new ConcurrentHashMap<>();
+
     /**
      * {@inheritDoc}
      */
     @Override
     public List<Application> getApplications(String apiKey, boolean european) throws IOException {
-        List<Application> result = new LinkedList<>();
+        return timed(ClientMetrics.GET_APPLICATIONS, european, () -> fetchApplications(apiKey, european));
+    }
 
-        CloseableHttpClient client = getHttpClient(european ? EUROPEAN_API_HOST : API_HOST);
+    private List<Application> fetchApplications(String apiKey, boolean european) throws IOException {
+        CompactApplicationList result = new CompactApplicationList();
 
-        HttpGet request = new HttpGet();
-        setHeaders(request, apiKey);
+        String host = european ? EUROPEAN_API_HOST : API_HOST;
+        CloseableHttpClient client = getHttpClient(host);
 
-        ResponseHandler<ApplicationList> rh = getApplicationsHandler();
+        ResponseHandler<ApplicationList> rh = getApplicationsHandler(host);
 
-        try {
-            int page = 1;
-            ApplicationList response = null;
-            //NewRelic pages appservice with 200 objects max.
-            //The other way is making always an extra request to check for an empty list. Or parse "Link" Response header
-            while(page == 1 || response.getApplications().size() == PAGE_SIZE) {
-                request.setURI(getEndpointURI(APPLICATIONS_ENDPOINT, page++, european ? EUROPEAN_API_HOST : API_HOST));
-                response = client.execute(request, rh);
-                result.addAll(response.getApplications());
-            }
+        ApplicationList response = client.execute(getApplicationsRequest(apiKey, 1, host), rh);
+        result.addAll(response.getApplications());
 
-        } finally {
-            if (client != null) {
-                client.close();
+        int lastPage = response.getLastPage();
+        if (lastPage > 1) {
+            List<Future<ApplicationList>> pages = new ArrayList<>(lastPage - 1);
+            try {
+                for (int page = 2; page <= lastPage; page++) {
+                    HttpGet request = getApplicationsRequest(apiKey, page, host);
+                    pages.add(PAGE_FETCHER.submit(() -> client.execute(request, rh)));
+                }
+                for (Future<ApplicationList> page : pages) {
+                    result.addAll(page.get().getApplications());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while fetching applications");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException ioe) {
+                    throw ioe;
+                }
+                throw new IOException(e.getCause());
+            } finally {
+                for (Future<ApplicationList> page : pages) {
+                    page.cancel(true);
+                }
+            }
+        } else if (lastPage == 0) {
+            // No link to the last page: keep requesting pages until one is not full
+            int page = 2;
+            while (response.getApplications().size() == PAGE_SIZE) {
+                response = client.execute(getApplicationsRequest(apiKey, page++, host), rh);
+                result.addAll(response.getApplications());
             }
         }
+        result.trimToSize();
         return result;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Application> getApplications(String apiKey, boolean european, String nameFilter) throws IOException {
+        return timed(ClientMetrics.GET_APPLICATIONS, european, () -> fetchApplications(apiKey, european, nameFilter));
+    }
+
+    private List<Application> fetchApplications(String apiKey, boolean european, String nameFilter) throws IOException {
+        String host = european ? EUROPEAN_API_HOST : API_HOST;
+        URIBuilder uriBuilder = new URIBuilder(getEndpointURI(APPLICATIONS_ENDPOINT, null, host));
+        uriBuilder.setParameter(NAME_FILTER_PARAMETER, nameFilter);
+
+        HttpGet request;
+        try {
+            request = new HttpGet(uriBuilder.build());
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+        setHeaders(request, apiKey);
+        DeliveryTrace.sending(request);
+        return getHttpClient(host).execute(request, getApplicationsHandler(host)).getApplications();
+    }
+
+    private HttpGet getApplicationsRequest(String apiKey, int page, String host) {
+        HttpGet request = new HttpGet(getEndpointURI(APPLICATIONS_ENDPOINT, page, host));
+        setHeaders(request, apiKey);
+        request.setConfig(Timeouts.DEFAULT.toRequestConfig(Long.MAX_VALUE));
+        return request;
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void sendNotification(String apiKey, String applicationId, String description, String revision,
                                     String changelog, String user, boolean european) throws IOException {
+        timed(ClientMetrics.SEND_NOTIFICATION, european, () -> {
+            postNotification(apiKey, applicationId, description, revision, changelog, user, european);
+            return null;
+        });
+    }
+
+    private void postNotification(String apiKey, String applicationId, String description, String revision,
+                                  String changelog, String user, boolean european) throws IOException {
         String appUrl = "/v2/applications/" + applicationId;
 
         URI url = getEndpointURI(appUrl + DEPLOYMENT_ENDPOINT, null, european ? EUROPEAN_API_HOST : API_HOST);
@@ -137,35 +287,16 @@ public class NewRelicClientImpl implements NewRelicClient {
         HttpPost request = new HttpPost(url);
         setHeaders(request, apiKey);
 
-        JsonObject deployment = new JsonObject();
-        deployment.addProperty("revision", revision);
-        deployment.addProperty("changelog", changelog);
-        deployment.addProperty("description", description);
-        deployment.addProperty("user", user);
-        JsonObject root = new JsonObject();
-        root.add("deployment", deployment);
+        long start = System.nanoTime();
+        request.setEntity(new ByteArrayEntity(makeRestPayload(revision, changelog, description, user),
+                ContentType.APPLICATION_JSON));
+        DeliveryTrace.serialized(System.nanoTime() - start);
 
-        StringEntity entity = new StringEntity(root.toString());
-        request.setEntity(entity);
-        entity.setContentType("application/json");
-
-        try (CloseableHttpClient client = getHttpClient(european ? EUROPEAN_API_HOST : API_HOST)) {
-            CloseableHttpResponse response = client.execute(request);
-            StatusLine statusLine = response.getStatusLine();
-            if (HttpStatus.SC_CREATED != statusLine.getStatusCode()) {
-                String responseBody = null;
-                HttpEntity responseEntity = response.getEntity();
-                if (responseEntity != null) {
-                    try (InputStream content = responseEntity.getContent()) {
-                        responseBody = IOUtils.toString(content, Charset.defaultCharset());
-                    }
-                }
-                throw new HttpResponseException(
-                        statusLine.getStatusCode(),
-                        statusLine.getReasonPhrase() + (responseBody != null ? "; Body = " + responseBody : "")
-                );
-            }
-        }
+        String host = european ? EUROPEAN_API_HOST : API_HOST;
+        execute(getHttpClient(host), () -> request, apiKey, host, HttpStatus.SC_CREATED, responseEntity -> {
+            EntityUtils.consume(responseEntity);
+            return null;
+        }, null, null);
     }
 
     /**
@@ -187,90 +318,363 @@ public class NewRelicClientImpl implements NewRelicClient {
             boolean european,
             TaskListener listener
     ) throws IOException {
-        URI url;
-        CloseableHttpClient client;
-        url = getEndpointURI(NERD_GRAPH_ENDPOINT, null, european ? EUROPEAN_GRAPHQL_URL : GRAPHQL_URL);
-        client = getHttpClient(european ? EUROPEAN_GRAPHQL_URL : GRAPHQL_URL);
-        if (european) {
-            client = getHttpClient(EUROPEAN_GRAPHQL_URL);
-            url = getEndpointURI(NERD_GRAPH_ENDPOINT, null, EUROPEAN_GRAPHQL_URL);
-        }
+        timed(ClientMetrics.SEND_NOTIFICATION_V2, european, () -> {
+            postNotificationV2(apiKey, changelog, commit, deepLink, deploymentType, description, entityGuid, groupId,
+                    timestamp, user, version, european, listener);
+            return null;
+        });
+    }
+
+    private void postNotificationV2(String apiKey, String changelog, String commit, String deepLink,
+                                    String deploymentType, String description, String entityGuid, String groupId,
+                                    String timestamp, String user, String version, boolean european,
+                                    TaskListener listener) throws IOException {
+        String host = european ? EUROPEAN_GRAPHQL_URL : GRAPHQL_URL;
+        URI url = getEndpointURI(NERD_GRAPH_ENDPOINT, null, host);
+        CloseableHttpClient client = getHttpClient(host);
 
         HttpPost request = new HttpPost(url);
         setHeaders(request, apiKey);
 
-        String strPayload = makePayload(
-                changelog,
-                commit,
-                deepLink,
-                deploymentType,
-                description,
-                entityGuid,
-                groupId,
-                timestamp,
-                user,
-                version
-        );
-
-        StringEntity entity = new StringEntity(strPayload);
-        request.setEntity(entity);
-        entity.setContentType("application/json");
+        Deployment deployment = new Deployment(changelog, commit, deepLink, deploymentType, description, entityGuid,
+                groupId, timestamp, user, version);
+        boolean gzip = compress(List.of(deployment));
+        byte[] payload = makePayload(deployment, gzip);
+        request.setEntity(nerdGraphEntity(payload, gzip));
+
+        NerdGraphResponse response;
+        try {
+            response = execute(client, () -> request, apiKey, host, HttpStatus.SC_OK,
+                    NewRelicClientImpl::parseNerdGraph, NewRelicClientImpl::isIncomplete, listener);
+        } catch (HttpResponseException e) {
+            throw new HttpResponseException(e.getStatusCode(),
+                    e.getReasonPhrase() + ", requestBody: " + requestBody(payload));
+        }
+        String deploymentId = response.getDeploymentId(MUTATION);
+        if (deploymentId != null) {
+            listener.getLogger().println("Notified New Relic. New Relic Deployment ID: " + deploymentId);
+            DeliveryTrace.deployed(deploymentId);
+            return;
+        }
+        NerdGraphResponse.Error error = response.getError(MUTATION);
+        if (error != null) {
+            throw new NerdGraphException(error.getMessage(), error.isRetryable());
+        }
+        listener.getLogger().println("Unable to reach New Relic to record the Deployment Id");
+    }
+
+    /**
+     * A client call, timed by {@link #timed(String, boolean, Call)}.
+     */
+    @FunctionalInterface
+    private interface Call<T> {
+        T call() throws IOException;
+    }
 
+    /**
+     * Runs a call and reports its duration and outcome to {@link ClientMetrics}.
+     */
+    private static <T> T timed(String operation, boolean european, Call<T> call) throws IOException {
+        long start = System.nanoTime();
+        boolean success = false;
         try {
-            int tries = 0;
-            while (tries++ < 3) {
-                CloseableHttpResponse response = client.execute(request);
+            T result = call.call();
+            success = true;
+            return result;
+        } finally {
+            ClientMetrics.get().call(operation, european, System.nanoTime() - start, success);
+        }
+    }
+
+    /**
+     * Reads a response body.
+     */
+    @FunctionalInterface
+    private interface ResponseParser<T> {
+        T parse(HttpEntity entity) throws IOException;
+    }
+
+    /**
+     * Builds the request to send, again when a response asks for it to be resent.
+     */
+    @FunctionalInterface
+    private interface RequestFactory {
+        HttpPost create() throws IOException;
+    }
+
+    /**
+     * Sends a request, retrying failures to connect and statuses telling that it was not processed according to
+     * {@link #getRetryPolicy()}. Requests to a host that keeps failing are refused by its {@link CircuitBreaker},
+     * and every attempt waits for the {@link RateLimiter} of the API key and host.
+     *
+     * @param requests Creates the first request, and the next one whenever {@code resend} accepts a response
+     * @param parser Reads the body of a response with the expected status; the entity may be {@code null}
+     * @param resend Whether a parsed response reports failures that may go away when sent again, may be
+     *               {@code null}. Such retries count towards the same attempts as the others.
+     * @param listener Receives retry messages, may be {@code null}
+     * @return The parsed response, the last one if the attempts ran out while it was to be resent
+     * @throws HttpResponseException if New Relic answers with another status than {@code expectedStatus}
+     * @throws CircuitOpenException if the host is considered unavailable
+     */
+    private <T> T execute(CloseableHttpClient client, RequestFactory requests, String apiKey, String host,
+                          int expectedStatus, ResponseParser<T> parser, Predicate<T> resend, TaskListener listener)
+            throws IOException {
+        RetryPolicy policy = getRetryPolicy();
+        CircuitBreaker breaker = CircuitBreaker.forHost(host);
+        RateLimiter limiter = RateLimiter.forKey(apiKey, host);
+        ClientMetrics.Recorder metrics = ClientMetrics.get();
+        boolean european = ClientMetrics.isEuropean(host);
+        HttpPost request = requests.create();
+        for (int attempt = 1; ; attempt++) {
+            breaker.checkAvailable();
+            limiter.acquire();
+            DeliveryTrace.sending(request);
+            HttpResponseException rejected = null;
+            IOException failure = null;
+            long delay;
+            long sent = System.nanoTime();
+            try (CloseableHttpResponse response = client.execute(request)) {
                 StatusLine statusLine = response.getStatusLine();
-                if (HttpStatus.SC_OK != statusLine.getStatusCode()) {
-                    String responseBody = null;
-                    HttpEntity responseEntity = response.getEntity();
-                    if (responseEntity != null) {
-                        try (InputStream content = responseEntity.getContent()) {
-                            responseBody = IOUtils.toString(content, Charset.defaultCharset());
-                        }
-                    }
-                    responseBody += ", requestBody: " + strPayload;
-                    throw new HttpResponseException(
-                            statusLine.getStatusCode(),
-                        statusLine.getReasonPhrase() + "; Body = " + responseBody
-                    );
+                int status = statusLine.getStatusCode();
+                metrics.response(european, status);
+                if (status >= HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+                    breaker.recordFailure();
                 } else {
-                    String responseBody = null;
-                    HttpEntity responseEntity = response.getEntity();
-                    if (responseEntity != null) {
-                        try (InputStream content = responseEntity.getContent()) {
-                            responseBody = IOUtils.toString(content, Charset.defaultCharset());
-                        }
-                    }
-                    responseBody += ", requestBody: " + strPayload;
-                    String deploymentId = parseResponseBody(responseBody);
-                    if (deploymentId != null && deploymentId.length() == 36) {
-                        listener.getLogger().println("Notified New Relic. New Relic Deployment ID: " + deploymentId);
-                        break;
-                    } else {
-                        if (tries == 3) {
-                            listener.getLogger().println("Unable to reach New Relic to record the Deployment Id");
-                        } else {
-                            listener.getLogger().println("Retrying calling New Relic API...");
-                        }
+                    breaker.recordSuccess();
+                }
+                if (status == expectedStatus) {
+                    T parsed = parser.parse(response.getEntity());
+                    if (resend == null || !resend.test(parsed) || attempt >= policy.getMaxAttempts()) {
+                        return parsed;
                     }
+                    delay = policy.getDelay(attempt);
+                } else {
+                    String responseBody = readErrorBody(response.getEntity());
+                    rejected = new HttpResponseException(status,
+                            statusLine.getReasonPhrase() + (responseBody != null ? "; Body = " + responseBody : ""));
+                    delay = RetryPolicy.isRetryable(status)
+                            ? policy.getDelay(attempt, response.getFirstHeader("Retry-After")) : -1;
                 }
+            } catch (IOException e) {
+                metrics.response(european, 0);
+                breaker.recordFailure();
+                failure = e;
+                delay = RetryPolicy.isRetryable(e) ? policy.getDelay(attempt) : -1;
+            } finally {
+                DeliveryTrace.attempted(System.nanoTime() - sent);
             }
-        } finally {
-            if (client != null) {
-                client.close();
+            if (failure != null) {
+                if (delay < 0 || attempt >= policy.getMaxAttempts() || Thread.currentThread().isInterrupted()) {
+                    throw failure;
+                }
+                log(listener, "Failed to reach New Relic (" + failure + "), retrying in " + delay + " ms");
+            } else if (rejected != null) {
+                if (delay < 0 || attempt >= policy.getMaxAttempts()) {
+                    throw rejected;
+                }
+                log(listener, "New Relic answered " + rejected.getStatusCode() + ", retrying in " + delay + " ms");
+            } else {
+                log(listener, "Retrying calling New Relic API...");
+                request = requests.create();
             }
+            metrics.retry(european);
+            DeliveryTrace.pause(policy, delay);
         }
+    }
 
+    /**
+     * @return Whether a response to a single deployment recorded no deployment and may do so when sent again
+     */
+    private static boolean isIncomplete(NerdGraphResponse response) {
+        if (response.getDeploymentId(MUTATION) != null) {
+            return false;
+        }
+        NerdGraphResponse.Error error = response.getError(MUTATION);
+        return error == null || error.isRetryable();
+    }
+
+    private static NerdGraphResponse parseNerdGraph(HttpEntity entity) throws IOException {
+        if (entity == null) {
+            return NerdGraphResponse.EMPTY;
+        }
+        try (Reader reader = new InputStreamReader(entity.getContent(), StandardCharsets.UTF_8)) {
+            return NerdGraphResponse.parse(reader);
+        }
+    }
+
+    /**
+     * Reads the start of an error response, at most {@link #MAX_ERROR_BODY} characters, for error messages.
+     *
+     * @return The start of the body, or {@code null} if the response has none
+     */
+    static String readErrorBody(HttpEntity entity) throws IOException {
+        if (entity == null) {
+            return null;
+        }
+        char[] buffer = new char[MAX_ERROR_BODY];
+        int length = 0;
+        boolean truncated;
+        try (Reader reader = new InputStreamReader(entity.getContent(), StandardCharsets.UTF_8)) {
+            int read;
+            while (length < buffer.length && (read = reader.read(buffer, length, buffer.length - length)) != -1) {
+                length += read;
+            }
+            truncated = length == buffer.length && reader.read() != -1;
+        }
+        return new String(buffer, 0, length) + (truncated ? "..." : "");
+    }
+
+    private static void log(TaskListener listener, String message) {
+        if (listener != null) {
+            listener.getLogger().println(message);
+        } else {
+            LOGGER.fine(message);
+        }
     }
 
+    /**
+     * @return How failed notifications are retried
+     */
+    protected RetryPolicy getRetryPolicy() {
+        return RetryPolicy.DEFAULT;
+    }
+
+    /**
+     * @param str A NerdGraph response to a single deployment
+     * @return The deployment ID, or {@code null} if none was recorded or the response cannot be read
+     */
     public String parseResponseBody(String str) {
-        if (str == null || !str.contains("deploymentId\":\"")) {
+        if (str == null) {
+            return null;
+        }
+        try {
+            return NerdGraphResponse.parse(new StringReader(str)).getDeploymentId(MUTATION);
+        } catch (IOException e) {
             return null;
         }
-        int start = str.indexOf("deploymentId\":\"");
-        String subString = str.substring(start + "deploymentId\":\"".length());
-        return subString.substring(0, 36);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<DeploymentResult> sendNotificationsV2(String apiKey, List<Deployment> deployments, boolean european,
+                                                      TaskListener listener) throws IOException {
+        return timed(ClientMetrics.SEND_NOTIFICATIONS_V2, european,
+                () -> postNotificationsV2(apiKey, deployments, european, listener));
+    }
+
+    private List<DeploymentResult> postNotificationsV2(String apiKey, List<Deployment> deployments, boolean european,
+                                                       TaskListener listener) throws IOException {
+        String host = european ? EUROPEAN_GRAPHQL_URL : GRAPHQL_URL;
+        URI url = getEndpointURI(NERD_GRAPH_ENDPOINT, null, host);
+        CloseableHttpClient client = getHttpClient(host);
+
+        DeploymentResult[] results = new DeploymentResult[deployments.size()];
+        List<Integer> pending = new ArrayList<>();
+        for (int i = 0; i < deployments.size(); i++) {
+            pending.add(i);
+        }
+
+        // deployments that got neither an id nor an error, or an error that may go away, are sent again like the
+        // single deployment call does; once the attempts have run out their result is kept as is
+        execute(client, () -> {
+            List<Deployment> batch = select(deployments, pending);
+            HttpPost request = new HttpPost(url);
+            setHeaders(request, apiKey);
+            boolean gzip = compress(batch);
+            request.setEntity(nerdGraphEntity(makeBatchPayload(batch, gzip), gzip));
+            return request;
+        }, apiKey, host, HttpStatus.SC_OK, NewRelicClientImpl::parseNerdGraph, response -> {
+            List<DeploymentResult> batchResults = toResults(response, select(deployments, pending));
+            List<Integer> retry = new ArrayList<>();
+            for (int i = 0; i < batchResults.size(); i++) {
+                DeploymentResult result = batchResults.get(i);
+                results[pending.get(i)] = result;
+                if (!result.isSuccess() && (result.getError() == null || result.isRetryable())) {
+                    retry.add(pending.get(i));
+                }
+            }
+            pending.retainAll(retry);
+            return !pending.isEmpty();
+        }, listener);
+
+        return Arrays.asList(results);
+    }
+
+    private static List<Deployment> select(List<Deployment> deployments, List<Integer> indexes) {
+        List<Deployment> selected = new ArrayList<>(indexes.size());
+        for (int i : indexes) {
+            selected.add(deployments.get(i));
+        }
+        return selected;
+    }
+
+    /**
+     * Maps a batched NerdGraph response back to the deployments it was sent for.
+     *
+     * @param str The response body
+     * @param deployments The deployments in the order they were aliased in the request
+     * @return One result per deployment, in the same order as {@code deployments}
+     */
+    public List<DeploymentResult> parseBatchResponseBody(String str, List<Deployment> deployments) {
+        NerdGraphResponse response;
+        try {
+            response = str == null ? NerdGraphResponse.EMPTY : NerdGraphResponse.parse(new StringReader(str));
+        } catch (IOException e) {
+            List<DeploymentResult> results = new ArrayList<>(deployments.size());
+            for (Deployment d : deployments) {
+                results.add(new DeploymentResult(d.getEntityGuid(), null, e.getMessage()));
+            }
+            return results;
+        }
+        return toResults(response, deployments);
+    }
+
+    private static List<DeploymentResult> toResults(NerdGraphResponse response, List<Deployment> deployments) {
+        List<DeploymentResult> results = new ArrayList<>(deployments.size());
+        for (int i = 0; i < deployments.size(); i++) {
+            String alias = BATCH_ALIAS_PREFIX + i;
+            String deploymentId = response.getDeploymentId(alias);
+            NerdGraphResponse.Error error = deploymentId == null ? response.getError(alias) : null;
+            results.add(new DeploymentResult(deployments.get(i).getEntityGuid(), deploymentId,
+                    error != null ? error.getMessage() : null, error != null && error.isRetryable()));
+        }
+        return results;
+    }
+
+    private static HttpEntity nerdGraphEntity(byte[] payload, boolean gzip) {
+        ByteArrayEntity entity = new ByteArrayEntity(payload, ContentType.APPLICATION_JSON);
+        if (gzip) {
+            entity.setContentEncoding("gzip");
+        }
+        return entity;
+    }
+
+    /**
+     * @return The request for an error message, compressed requests are only described
+     */
+    private static String requestBody(byte[] payload) {
+        if (payload.length > 1 && payload[0] == (byte) 0x1f && payload[1] == (byte) 0x8b) {
+            return payload.length + " bytes, gzip compressed";
+        }
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return Whether the request recording the deployments is large enough to be worth compressing
+     */
+    static boolean compress(List<Deployment> deployments) {
+        if (COMPRESS_CHANGELOG_CHARS <= 0) {
+            return false;
+        }
+        long chars = 0;
+        for (Deployment d : deployments) {
+            if (d.getChangelog() != null) {
+                chars += d.getChangelog().length();
+            }
+        }
+        return chars >= COMPRESS_CHANGELOG_CHARS;
     }
 
     /**
@@ -288,7 +692,12 @@ public class NewRelicClientImpl implements NewRelicClient {
         return getApiEndpoint();
     }
 
-    public String makePayload(
+    /**
+     * Builds the request recording a single deployment, sent as GraphQL variables.
+     *
+     * @return The UTF-8 encoded request payload
+     */
+    public byte[] makePayload(
             String changelog,
             String commit,
             String deepLink,
@@ -299,72 +708,148 @@ public class NewRelicClientImpl implements NewRelicClient {
             String timestamp,
             String user,
             String version) {
+        return makePayload(new Deployment(changelog, commit, deepLink, deploymentType, description, entityGuid,
+                groupId, timestamp, user, version), false);
+    }
 
-        JsonObject payload = new JsonObject();
-        payload.addProperty("commit", commit);
-        payload.addProperty("changelog", changelog);
-        payload.addProperty("description", description);
-        payload.addProperty("user", user);
-        payload.addProperty("deepLink", deepLink);
-        payload.addProperty("deploymentType", deploymentType);
-        payload.addProperty("entityGuid", entityGuid);
-        payload.addProperty("user", user);
-        payload.addProperty("version", version);
-        payload.addProperty("groupId", groupId);
-        payload.addProperty("timestamp", timestamp);
-
-        StringBuilder header = new StringBuilder();
-
-        payload.entrySet().forEach(e -> {
-            if (e.getValue() != null && e.getValue().toString().trim().length() > 2) {
-                if (!header.isEmpty()) {
-                    header.append(", ");
-                }
-                String value = e.getValue().toString();
-                if (e.getKey().equalsIgnoreCase("deploymentType") || e.getKey().equalsIgnoreCase("timestamp")) {
-                    value = value.replace("\"", "");
-                    header.append(e.getKey()).append(": ").append(value);
-                } else {
-                    value = value.substring(0, value.length() - 1);
-                    value += "\\\"";
-                    header.append(e.getKey()).append(": \\").append(value);
-                }
-            }
-        });
+    private static byte[] makePayload(Deployment deployment, boolean gzip) {
+        long start = System.nanoTime();
+        byte[] payload = DeploymentMutation.write(deployment, gzip);
+        DeliveryTrace.serialized(System.nanoTime() - start);
+        return payload;
+    }
+
+    /**
+     * Builds a single request that records every deployment, each under its own alias
+     * ({@value #BATCH_ALIAS_PREFIX}0, {@value #BATCH_ALIAS_PREFIX}1, ...).
+     *
+     * @param deployments The deployments to record
+     * @return The UTF-8 encoded request payload
+     */
+    public byte[] makeBatchPayload(List<Deployment> deployments) {
+        return makeBatchPayload(deployments, false);
+    }
+
+    private static byte[] makeBatchPayload(List<Deployment> deployments, boolean gzip) {
+        long start = System.nanoTime();
+        byte[] payload = DeploymentMutation.write(deployments, gzip);
+        DeliveryTrace.serialized(System.nanoTime() - start);
+        return payload;
+    }
 
-        return "{\"query\":"
-                + "\"mutation {changeTrackingCreateDeployment(deployment: {"
-                + header
-                + "}) {"
-                + "deploymentId"
-                + "}}\"}";
+    /**
+     * Builds the REST API request recording a deployment of an application.
+     *
+     * @return The UTF-8 encoded request payload
+     */
+    static byte[] makeRestPayload(String revision, String changelog, String description, String user) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        try (JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+            writer.beginObject().name("deployment").beginObject();
+            writer.name("revision").value(revision);
+            writer.name("changelog").value(changelog);
+            writer.name("description").value(description);
+            writer.name("user").value(user);
+            writer.endObject().endObject();
+        } catch (IOException e) {
+            // cannot happen when writing to memory
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
     }
 
+    /**
+     * Returns the shared, pooled client for the given host. The client is created on first use and rebuilt only
+     * when the Jenkins proxy configuration is replaced, so callers must not close it; close the responses instead.
+     *
+     * @param host The New Relic host the client will talk to
+     * @return A long-lived client for the host
+     */
     protected CloseableHttpClient getHttpClient(String host) {
-        HttpClientBuilder builder = HttpClientBuilder.create();
         Jenkins instance = Jenkins.getInstanceOrNull();
+        ProxyConfiguration proxyConfig = instance != null ? instance.proxy : null;
 
-        if (instance != null) {
-            ProxyConfiguration proxyConfig = instance.proxy;
-            if (proxyConfig != null) {
-                Proxy proxy = proxyConfig.createProxy(host);
-                if (proxy != null && proxy.type() == Proxy.Type.HTTP) {
-                    SocketAddress addr = proxy.address();
-                    if (addr instanceof InetSocketAddress proxyAddr) {
-                        HttpHost proxyHost = new HttpHost(proxyAddr.getAddress().getHostAddress(), proxyAddr.getPort());
-                        DefaultProxyRoutePlanner routePlanner = new DefaultProxyRoutePlanner(proxyHost);
-                        builder.setRoutePlanner(routePlanner);
-
-                        String proxyUser = proxyConfig.getUserName();
-                        if (proxyUser != null) {
-                            String proxyPass = Secret.toString(proxyConfig.getSecretPassword());
-                            CredentialsProvider cred = new BasicCredentialsProvider();
-                            cred.setCredentials(new AuthScope(proxyHost),
-                                    new UsernamePasswordCredentials(proxyUser, proxyPass));
-                            builder
-                                    .setDefaultCredentialsProvider(cred)
-                                    .setProxyAuthenticationStrategy(new ProxyAuthenticationStrategy());
-                        }
+        return HTTP_CLIENTS.compute(host, (h, current) -> {
+            if (current != null && current.proxyConfig == proxyConfig) {
+                return current;
+            }
+            if (current != null) {
+                current.retire();
+            }
+            PoolingHttpClientConnectionManager connectionManager = createConnectionManager();
+            return new SharedHttpClient(proxyConfig, connectionManager,
+                    createHttpClient(h, proxyConfig, connectionManager));
+        }).client;
+    }
+
+    /**
+     * Returns the state of the connection pool used for a New Relic host.
+     *
+     * @param host The New Relic host
+     * @return The leased, available and pending connections, or {@code null} if no request was sent to the host yet
+     */
+    @CheckForNull
+    public static PoolStats getPoolStats(String host) {
+        SharedHttpClient shared = HTTP_CLIENTS.get(host);
+        return shared != null ? shared.connectionManager.getTotalStats() : null;
+    }
+
+    private static PoolingHttpClientConnectionManager createConnectionManager() {
+        // A single SSLContext lets JSSE resume TLS sessions when the pool opens additional connections
+        SSLConnectionSocketFactory sslSocketFactory = new SSLConnectionSocketFactory(SSLContexts.createSystemDefault());
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(
+                RegistryBuilder.<ConnectionSocketFactory>create()
+                        .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                        .register("https", sslSocketFactory)
+                        .build());
+        connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+        connectionManager.setMaxTotal(MAX_CONNECTIONS_PER_ROUTE * 2);
+        connectionManager.setValidateAfterInactivity(2000);
+        return connectionManager;
+    }
+
+    private static CloseableHttpClient createHttpClient(String host, ProxyConfiguration proxyConfig,
+                                                        PoolingHttpClientConnectionManager connectionManager) {
+
+        ConnectionKeepAliveStrategy keepAlive = (response, context) -> {
+            long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            long maxKeepAlive = TimeUnit.SECONDS.toMillis(MAX_KEEP_ALIVE);
+            return serverKeepAlive > 0 ? Math.min(serverKeepAlive, maxKeepAlive) : maxKeepAlive;
+        };
+
+        HttpClientBuilder builder = HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(keepAlive)
+                // connections are never bound to a user token, so any pooled connection can serve any request
+                .disableConnectionState()
+                // content compression stays enabled: requests send Accept-Encoding: gzip,deflate and compressed
+                // responses are decoded while they are streamed to the parsers
+                .evictExpiredConnections()
+                .evictIdleConnections(IDLE_CONNECTION_TIMEOUT, TimeUnit.SECONDS);
+
+        if (Jenkins.getInstanceOrNull() == null) {
+            // on an agent there is no Jenkins proxy configuration: use the proxy of the agent JVM, set with the
+            // http(s).proxyHost, http(s).proxyPort and http.nonProxyHosts system properties
+            builder.useSystemProperties();
+        }
+        if (proxyConfig != null) {
+            Proxy proxy = proxyConfig.createProxy(host);
+            if (proxy != null && proxy.type() == Proxy.Type.HTTP) {
+                SocketAddress addr = proxy.address();
+                if (addr instanceof InetSocketAddress proxyAddr) {
+                    HttpHost proxyHost = new HttpHost(proxyAddr.getAddress().getHostAddress(), proxyAddr.getPort());
+                    DefaultProxyRoutePlanner routePlanner = new DefaultProxyRoutePlanner(proxyHost);
+                    builder.setRoutePlanner(routePlanner);
+
+                    String proxyUser = proxyConfig.getUserName();
+                    if (proxyUser != null) {
+                        String proxyPass = Secret.toString(proxyConfig.getSecretPassword());
+                        CredentialsProvider cred = new BasicCredentialsProvider();
+                        cred.setCredentials(new AuthScope(proxyHost),
+                                new UsernamePasswordCredentials(proxyUser, proxyPass));
+                        builder
+                                .setDefaultCredentialsProvider(cred)
+                                .setProxyAuthenticationStrategy(new ProxyAuthenticationStrategy());
                     }
                 }
             }
@@ -373,6 +858,25 @@ public class NewRelicClientImpl implements NewRelicClient {
         return builder.build();
     }
 
+    private static ExecutorService createPageFetcher() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(PAGE_CONCURRENCY, PAGE_CONCURRENCY,
+                60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "NewRelicClientImpl.pageFetcher"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Closes the shared clients and their connection pools.
+     */
+    @Terminator
+    public static void closeHttpClients() {
+        for (SharedHttpClient shared : HTTP_CLIENTS.values()) {
+            shared.close();
+        }
+        HTTP_CLIENTS.clear();
+    }
+
     private void setHeaders(HttpRequest request, String apiKey) {
         request.addHeader("X-Api-Key", apiKey);
         request.addHeader("Accept", "application/json");
@@ -402,22 +906,136 @@ public class NewRelicClientImpl implements NewRelicClient {
 
     }
 
-    private ResponseHandler<ApplicationList> getApplicationsHandler() {
+    private ResponseHandler<ApplicationList> getApplicationsHandler(String host) {
         return response -> {
             StatusLine statusLine = response.getStatusLine();
+            ClientMetrics.get().response(ClientMetrics.isEuropean(host), statusLine.getStatusCode());
             if (statusLine.getStatusCode() != HttpStatus.SC_OK) {
+                String responseBody = readErrorBody(response.getEntity());
                 throw new HttpResponseException(
                         statusLine.getStatusCode(),
-                        statusLine.getReasonPhrase()
+                        statusLine.getReasonPhrase() + (responseBody != null ? "; Body = " + responseBody : "")
                 );
             }
             HttpEntity entity = response.getEntity();
             if (entity == null) {
                 throw new ClientProtocolException("Response contains no content");
             }
-            Gson gson = new GsonBuilder().create();
-            Reader reader = new InputStreamReader(entity.getContent(), StandardCharsets.UTF_8);
-            return gson.fromJson(reader, ApplicationList.class);
+            try (Reader reader = new InputStreamReader(entity.getContent(), StandardCharsets.UTF_8)) {
+                return new ApplicationList(parseApplications(reader), getLastPage(response.getHeaders("Link")));
+            }
         };
     }
+
+    /**
+     * Reads the {@code id} and {@code name} of each application from an applications response, skipping
+     * every other field without building a tree.
+     *
+     * @param reader The response body
+     * @return The applications on the page
+     * @throws IOException when the response cannot be read or is not valid JSON
+     */
+    static CompactApplicationList parseApplications(Reader reader) throws IOException {
+        CompactApplicationList applications = new CompactApplicationList();
+        JsonReader json = new JsonReader(reader);
+        try {
+            json.beginObject();
+            while (json.hasNext()) {
+                if (!"applications".equals(json.nextName()) || json.peek() != JsonToken.BEGIN_ARRAY) {
+                    json.skipValue();
+                    continue;
+                }
+                json.beginArray();
+                while (json.hasNext()) {
+                    long id = 0;
+                    String name = null;
+                    json.beginObject();
+                    while (json.hasNext()) {
+                        String field = json.nextName();
+                        if ("id".equals(field) && json.peek() == JsonToken.NUMBER) {
+                            id = json.nextLong();
+                        } else if ("name".equals(field) && json.peek() == JsonToken.STRING) {
+                            name = json.nextString();
+                        } else {
+                            json.skipValue();
+                        }
+                    }
+                    json.endObject();
+                    applications.add(id, name);
+                }
+                json.endArray();
+            }
+            json.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new ClientProtocolException("Unexpected applications response", e);
+        }
+        return applications;
+    }
+
+    /**
+     * Finds the last page number in {@code Link} headers such as
+     * {@code <https://api.newrelic.com/v2/applications.json?page=30>; rel="last"}.
+     *
+     * @param headers The {@code Link} response headers
+     * @return The last page number, or 0 if the headers have no {@code rel="last"} link and pages have to be requested
+     *         one after the other
+     */
+    static int getLastPage(Header[] headers) {
+        if (headers == null || headers.length == 0) {
+            return 0;
+        }
+        for (Header header : headers) {
+            for (String link : header.getValue().split(",")) {
+                int start = link.indexOf('<');
+                int end = link.indexOf('>', start + 1);
+                if (start < 0 || end < 0 || !link.substring(end).replace(" ", "").contains("rel=\"last\"")) {
+                    continue;
+                }
+                try {
+                    for (NameValuePair param : new URIBuilder(link.substring(start + 1, end).trim()).getQueryParams()) {
+                        if (PAGE_PARAMETER.equals(param.getName())) {
+                            return Integer.parseInt(param.getValue());
+                        }
+                    }
+                } catch (URISyntaxException | NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * A pooled client together with the proxy configuration it was built for.
+     */
+    private static final class SharedHttpClient {
+
+        /**
+         * Seconds a replaced client is kept open so that requests already running on it can complete.
+         */
+        private static final long RETIRE_DELAY = 60;
+
+        private final ProxyConfiguration proxyConfig;
+        private final PoolingHttpClientConnectionManager connectionManager;
+        private final CloseableHttpClient client;
+
+        SharedHttpClient(ProxyConfiguration proxyConfig, PoolingHttpClientConnectionManager connectionManager,
+                         CloseableHttpClient client) {
+            this.proxyConfig = proxyConfig;
+            this.connectionManager = connectionManager;
+            this.client = client;
+        }
+
+        void retire() {
+            Timer.get().schedule(this::close, RETIRE_DELAY, TimeUnit.SECONDS);
+        }
+
+        void close() {
+            try {
+                client.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to close New Relic HTTP client", e);
+            }
+        }
+    }
 }
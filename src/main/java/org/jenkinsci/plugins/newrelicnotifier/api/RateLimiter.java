@@ -0,0 +1,176 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import hudson.Util;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket shared by every notification sent on this controller with the same API key to the same region,
+ * so a burst of builds does not exceed the New Relic rate limits.
+ * <p>
+ * Callers that find the bucket empty reserve the next token and wait for it, so they are served in order instead
+ * of failing. Rate and burst are set with {@link #configure(int, int)}.
+ */
+public final class RateLimiter {
+
+    private static final Map<String, RateLimiter> LIMITERS = new ConcurrentHashMap<>();
+
+    private static volatile int requestsPerMinute = 600;
+    private static volatile int burst = 20;
+
+    private final String host;
+    private final String keyDigest;
+
+    private double tokens;
+    private long lastRefill;
+    private long granted;
+    private long throttled;
+    private long waited;
+    private int waiting;
+
+    RateLimiter(String host, String keyDigest) {
+        this.host = host;
+        this.keyDigest = keyDigest;
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * @param requestsPerMinute Sustained rate, or {@code 0} for no limit
+     * @param burst Requests allowed at once before the rate applies
+     */
+    public static void configure(int requestsPerMinute, int burst) {
+        RateLimiter.requestsPerMinute = Math.max(0, requestsPerMinute);
+        RateLimiter.burst = Math.max(1, burst);
+    }
+
+    public static RateLimiter forKey(String apiKey, String host) {
+        String digest = Util.getDigestOf(apiKey);
+        return LIMITERS.computeIfAbsent(host + ":" + digest, k -> new RateLimiter(host, digest));
+    }
+
+    /**
+     * @return Every limiter in use, for display
+     */
+    public static List<RateLimiter> getAll() {
+        return new ArrayList<>(LIMITERS.values());
+    }
+
+    /**
+     * Takes a token, waiting for one if the bucket is empty.
+     *
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public void acquire() throws InterruptedIOException {
+        long wait;
+        synchronized (this) {
+            wait = reserve(System.nanoTime());
+            if (wait == 0) {
+                return;
+            }
+            waiting++;
+        }
+        ClientMetrics.get().rateLimited(ClientMetrics.isEuropean(host), wait);
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the New Relic rate limit");
+        } finally {
+            synchronized (this) {
+                waiting--;
+            }
+        }
+    }
+
+    /**
+     * @return Nanoseconds to wait before the reserved token is available
+     */
+    synchronized long reserve(long now) {
+        granted++;
+        int rate = requestsPerMinute;
+        if (rate == 0) {
+            return 0;
+        }
+        long interval = TimeUnit.MINUTES.toNanos(1);
+        if (now > lastRefill) {
+            tokens = Math.min(burst, tokens + (now - lastRefill) * (double) rate / interval);
+            lastRefill = now;
+        }
+        tokens -= 1;
+        if (tokens >= 0) {
+            return 0;
+        }
+        long wait = (long) Math.ceil(-tokens * interval / rate);
+        throttled++;
+        waited += TimeUnit.NANOSECONDS.toMillis(wait);
+        return wait;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @return The start of the API key digest, enough to tell keys apart without revealing them
+     */
+    public String getKeyDigest() {
+        return keyDigest.substring(0, Math.min(8, keyDigest.length()));
+    }
+
+    /**
+     * @return Requests let through, including throttled ones
+     */
+    public synchronized long getGranted() {
+        return granted;
+    }
+
+    /**
+     * @return Requests that had to wait
+     */
+    public synchronized long getThrottled() {
+        return throttled;
+    }
+
+    /**
+     * @return Total milliseconds requests have waited
+     */
+    public synchronized long getWaitedMillis() {
+        return waited;
+    }
+
+    /**
+     * @return Requests waiting right now
+     */
+    public synchronized int getWaiting() {
+        return waiting;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import jenkins.util.SystemProperties;
+import org.apache.http.Header;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.conn.ConnectTimeoutException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How failed New Relic requests are retried: exponential backoff with full jitter, honoring {@code Retry-After}.
+ */
+public class RetryPolicy {
+
+    /**
+     * The policy used by {@link NewRelicClientImpl}, tunable with system properties.
+     */
+    public static final RetryPolicy DEFAULT = new RetryPolicy(
+            SystemProperties.getInteger(RetryPolicy.class.getName() + ".maxAttempts", 3),
+            SystemProperties.getLong(RetryPolicy.class.getName() + ".initialDelay", 500L),
+            SystemProperties.getLong(RetryPolicy.class.getName() + ".maxDelay", 30000L));
+
+    private final int maxAttempts;
+    private final long initialDelay;
+    private final long maxDelay;
+
+    /**
+     * @param maxAttempts Attempts made in total, including the first one
+     * @param initialDelay Upper bound in milliseconds of the delay before the first retry
+     * @param maxDelay Upper bound in milliseconds of any delay
+     */
+    public RetryPolicy(int maxAttempts, long initialDelay, long maxDelay) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialDelay = Math.max(0, initialDelay);
+        this.maxDelay = Math.max(this.initialDelay, maxDelay);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Whether a request that failed with this exception may be sent again. Only failures to connect qualify: once a
+     * request has been sent, New Relic may have recorded the deployment even though no answer arrived, and sending
+     * it again would record it twice.
+     */
+    public static boolean isRetryable(IOException e) {
+        return e instanceof ConnectException
+                || e instanceof ConnectTimeoutException
+                || e instanceof NoRouteToHostException
+                || e instanceof UnknownHostException;
+    }
+
+    /**
+     * Whether a request answered with this status may succeed when sent again. Only statuses telling that New Relic
+     * did not process the request qualify, as deployments are recorded with non-idempotent {@code POST} requests.
+     */
+    public static boolean isRetryable(int status) {
+        return status == 429 // Too Many Requests
+                || status == 503; // Service Unavailable
+    }
+
+    /**
+     * @param attempt The attempt that just failed, starting at 1
+     * @return A random delay in milliseconds between 0 and the exponential backoff for this attempt
+     */
+    public long getDelay(int attempt) {
+        long backoff = initialDelay << Math.min(Math.max(attempt - 1, 0), 20);
+        long cap = backoff < 0 ? maxDelay : Math.min(maxDelay, backoff);
+        return ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    /**
+     * @param attempt The attempt that just failed, starting at 1
+     * @param retryAfter The {@code Retry-After} header of the response, if any
+     * @return The delay in milliseconds requested by the server, or the backoff delay when it did not ask for one;
+     *         {@code -1} if the server asked to wait longer than this policy allows
+     */
+    public long getDelay(int attempt, Header retryAfter) {
+        long requested = retryAfter == null ? -1 : parseRetryAfter(retryAfter.getValue(), System.currentTimeMillis());
+        if (requested < 0) {
+            return getDelay(attempt);
+        }
+        return requested > maxDelay ? -1 : requested;
+    }
+
+    /**
+     * Parses a {@code Retry-After} value, given either in seconds or as an HTTP date.
+     *
+     * @return The delay in milliseconds, or {@code -1} if the value cannot be parsed
+     */
+    static long parseRetryAfter(String value, long now) {
+        if (value == null) {
+            return -1;
+        }
+        value = value.trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            Date date = DateUtils.parseDate(value);
+            return date == null ? -1 : Math.max(0, date.getTime() - now);
+        }
+    }
+
+    /**
+     * Waits before the next attempt.
+     */
+    public void sleep(long millis) throws InterruptedIOException {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry");
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier.api;
+
+import org.apache.http.client.config.RequestConfig;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits for a single request to New Relic, in seconds: establishing the connection, waiting for data, and waiting
+ * for a connection from the pool. {@code 0} uses the controller-wide default set with
+ * {@link #configure(int, int, int)}.
+ */
+public final class Timeouts implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final int DEFAULT_CONNECT = 10;
+    public static final int DEFAULT_READ = 30;
+    public static final int DEFAULT_LEASE = 10;
+
+    /**
+     * Uses the controller-wide defaults.
+     */
+    public static final Timeouts DEFAULT = new Timeouts(0, 0, 0);
+
+    private static volatile Timeouts defaults = new Timeouts(DEFAULT_CONNECT, DEFAULT_READ, DEFAULT_LEASE);
+
+    private final int connect;
+    private final int read;
+    private final int lease;
+
+    public Timeouts(int connect, int read, int lease) {
+        this.connect = Math.max(0, connect);
+        this.read = Math.max(0, read);
+        this.lease = Math.max(0, lease);
+    }
+
+    /**
+     * Sets the timeouts used when none are given. Values below one second are raised to one second, as New Relic
+     * requests are never allowed to wait forever.
+     */
+    public static void configure(int connect, int read, int lease) {
+        defaults = new Timeouts(Math.max(1, connect), Math.max(1, read), Math.max(1, lease));
+    }
+
+    /**
+     * @return These timeouts with the defaults of this JVM filled in, for use where other defaults apply
+     */
+    Timeouts resolve() {
+        return new Timeouts(connect > 0 ? connect : defaults.connect, read > 0 ? read : defaults.read,
+                lease > 0 ? lease : defaults.lease);
+    }
+
+    public long getConnectMillis() {
+        return TimeUnit.SECONDS.toMillis(connect > 0 ? connect : defaults.connect);
+    }
+
+    public long getReadMillis() {
+        return TimeUnit.SECONDS.toMillis(read > 0 ? read : defaults.read);
+    }
+
+    public long getLeaseMillis() {
+        return TimeUnit.SECONDS.toMillis(lease > 0 ? lease : defaults.lease);
+    }
+
+    /**
+     * @param maxMillis Upper bound of every timeout, e.g. the time left before a deadline
+     */
+    RequestConfig toRequestConfig(long maxMillis) {
+        return RequestConfig.custom()
+                .setConnectTimeout(clip(getConnectMillis(), maxMillis))
+                .setSocketTimeout(clip(getReadMillis(), maxMillis))
+                .setConnectionRequestTimeout(clip(getLeaseMillis(), maxMillis))
+                .build();
+    }
+
+    private static int clip(long millis, long maxMillis) {
+        // 0 would mean no timeout at all
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, Math.min(millis, maxMillis)));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.util.StreamTaskListener;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChangelogFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsWholeFile() throws Exception {
+        File file = folder.newFile();
+        Files.writeString(file.toPath(), "Fixed \u00fcn\u00efcode", StandardCharsets.UTF_8);
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+        String changelog = ChangelogFile.read(new FilePath(file), 1024,
+                new StreamTaskListener(log, StandardCharsets.UTF_8));
+
+        assertEquals("Fixed \u00fcn\u00efcode", changelog);
+        assertEquals(0, log.size());
+    }
+
+    @Test
+    public void truncatesOnCharacterBoundary() throws Exception {
+        File file = folder.newFile();
+        // each accented e is two bytes, so the limit falls within the second one
+        Files.writeString(file.toPath(), "ab\u00e9\u00e9", StandardCharsets.UTF_8);
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+        String changelog = ChangelogFile.read(new FilePath(file), 5,
+                new StreamTaskListener(log, StandardCharsets.UTF_8));
+
+        assertEquals("ab\u00e9", changelog);
+        assertTrue(log.toString(StandardCharsets.UTF_8).contains("Changelog truncated to the first 4 bytes"));
+    }
+
+    @Test
+    public void rejectsPathsOutsideWorkspace() throws Exception {
+        File workspace = folder.newFolder("workspace");
+        Files.writeString(folder.newFile("secret.txt").toPath(), "secret", StandardCharsets.UTF_8);
+        DeploymentNotificationBean bean = new DeploymentNotificationBean("apiKey", "applicationId", "description",
+                "revision", "changelog", "commit", "deeplink", "user", "entityGuid", "deploymentId", "BASIC",
+                "groupId", "timestamp", "version", false);
+
+        for (String path : new String[] {"../secret.txt", new File(folder.getRoot(), "secret.txt").getPath()}) {
+            bean.setChangelogFile(path);
+            ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+            ResolvedNotification resolved = bean.resolve(new EnvVars(), new FilePath(workspace),
+                    new StreamTaskListener(log, StandardCharsets.UTF_8));
+
+            assertEquals("changelog", resolved.getChangelog());
+            assertTrue(log.toString(StandardCharsets.UTF_8).contains("is not inside the workspace"));
+        }
+    }
+
+    @Test
+    public void wholeCharacters() {
+        byte[] bytes = "a\u20ac\ud83d\ude00".getBytes(StandardCharsets.UTF_8);
+        assertEquals(1, ChangelogFile.wholeCharacters(bytes, 1));
+        assertEquals(1, ChangelogFile.wholeCharacters(bytes, 3));
+        assertEquals(4, ChangelogFile.wholeCharacters(bytes, 4));
+        assertEquals(4, ChangelogFile.wholeCharacters(bytes, 7));
+        assertEquals(8, ChangelogFile.wholeCharacters(bytes, 8));
+    }
+}
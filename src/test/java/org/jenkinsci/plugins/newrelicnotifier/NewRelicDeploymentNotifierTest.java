@@ -27,6 +27,7 @@ import com.cloudbees.plugins.credentials.CredentialsProvider;
 import com.cloudbees.plugins.credentials.CredentialsScope;
 import com.cloudbees.plugins.credentials.domains.Domain;
 import com.cloudbees.plugins.credentials.impl.UsernamePasswordCredentialsImpl;
+import hudson.EnvVars;
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
 import hudson.model.Result;
@@ -43,7 +44,18 @@ import org.mockito.junit.MockitoJUnitRunner;
 import java.util.ArrayList;
 import java.util.List;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -149,6 +161,214 @@ public class NewRelicDeploymentNotifierTest {
         jenkinsRule.assertBuildStatus(Result.SUCCESS, b);
     }
 
+    @Test
+    public void runOnAgentUsesControllerClientForLocalWorkspace() throws Exception {
+        FreeStyleProject p = jenkinsRule.createFreeStyleProject();
+
+        List<DeploymentNotificationBean> notifications = new ArrayList<>();
+        notifications.add(new DeploymentNotificationBean(
+                credentialsId,
+                "applicationId",
+                "description",
+                "revision",
+                "changelog",
+                "commit",
+                "deeplink",
+                "user",
+                "",
+                "deploymentId",
+                "deploymentType",
+                "groupId",
+                "timestamp",
+                "version",
+                false
+        ));
+
+        NewRelicDeploymentNotifier notifier = spy(new NewRelicDeploymentNotifier(notifications));
+        notifier.setRunOnAgent(true);
+        when(notifier.getClient()).thenReturn(client);
+
+        p.getPublishersList().add(notifier);
+        FreeStyleBuild b = p.scheduleBuild2(0).get();
+        jenkinsRule.assertBuildStatus(Result.SUCCESS, b);
+        verify(client).sendNotification(eq(password), eq("applicationId"), eq("description"), eq("revision"),
+                eq("changelog"), eq("user"), eq(false));
+    }
+
+    @Test
+    public void freestyleProjectNotifierKeepsLogOrder() throws Exception {
+        FreeStyleProject p = jenkinsRule.createFreeStyleProject();
+
+        List<DeploymentNotificationBean> notifications = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            notifications.add(new DeploymentNotificationBean(
+                    credentialsId,
+                    "applicationId" + i,
+                    "description",
+                    "revision",
+                    "changelog",
+                    "commit",
+                    "deeplink",
+                    "user",
+                    "",
+                    "deploymentId",
+                    "deploymentType",
+                    "groupId",
+                    "timestamp",
+                    "version",
+                    false
+            ));
+        }
+
+        NewRelicDeploymentNotifier notifier = spy(new NewRelicDeploymentNotifier(notifications));
+        when(notifier.getClient()).thenReturn(client);
+
+        p.getPublishersList().add(notifier);
+        FreeStyleBuild b = p.scheduleBuild2(0).get();
+        jenkinsRule.assertBuildStatus(Result.SUCCESS, b);
+
+        String log = JenkinsRule.getLog(b);
+        int previous = -1;
+        for (int i = 0; i < 5; i++) {
+            int index = log.indexOf("Notified New Relic. Application ID: applicationId" + i);
+            assertTrue(index > previous);
+            previous = index;
+        }
+    }
+
+    @Test
+    public void freestyleProjectNotifierBatchesEntities() throws Exception {
+        FreeStyleProject p = jenkinsRule.createFreeStyleProject();
+
+        List<DeploymentNotificationBean> notifications = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            notifications.add(new DeploymentNotificationBean(
+                    credentialsId,
+                    "applicationId",
+                    "description",
+                    "revision",
+                    "changelog",
+                    "commit",
+                    "deeplink",
+                    "user",
+                    "entityGuid" + i,
+                    "deploymentId",
+                    "deploymentType",
+                    "groupId",
+                    "timestamp",
+                    "version",
+                    false
+            ));
+        }
+
+        NewRelicDeploymentNotifier notifier = spy(new NewRelicDeploymentNotifier(notifications));
+        when(notifier.getClient()).thenReturn(client);
+
+        p.getPublishersList().add(notifier);
+        FreeStyleBuild b = p.scheduleBuild2(0).get();
+        jenkinsRule.assertBuildStatus(Result.SUCCESS, b);
+        verify(client, times(1)).sendNotificationsV2(anyString(), anyList(), eq(false), any());
+
+        DeploymentNotificationAction action = b.getAction(DeploymentNotificationAction.class);
+        assertNotNull(action);
+        assertEquals(3, action.getOutcomes().size());
+        for (int i = 0; i < 3; i++) {
+            DeploymentNotificationAction.Outcome outcome = action.getOutcomes().get(i);
+            assertEquals("entityGuid" + i, outcome.getTarget());
+            assertEquals(DeploymentNotificationAction.Status.DELIVERED, outcome.getStatus());
+            assertTrue(outcome.getAttempts() >= 1);
+        }
+    }
+
+    @Test
+    public void resolveExpandsTemplates() {
+        DeploymentNotificationBean bean = new DeploymentNotificationBean(
+                credentialsId,
+                "applicationId",
+                "Deployed ${JOB_NAME}",
+                "revision",
+                "changelog",
+                "${GIT_COMMIT}",
+                "deeplink",
+                "user",
+                "${ENTITY_GUID}",
+                "deploymentId",
+                "deploymentType",
+                "groupId",
+                "timestamp",
+                "version",
+                true
+        );
+        EnvVars envVars = new EnvVars("JOB_NAME", "deploy", "GIT_COMMIT", "abc123", "ENTITY_GUID", "guid");
+
+        ResolvedNotification n = bean.resolve(envVars);
+        assertEquals(credentialsId, n.getCredentialsId());
+        assertEquals("Deployed deploy", n.getDescription());
+        assertEquals("abc123", n.getCommit());
+        assertEquals("guid", n.getTarget());
+        assertEquals("revision", n.getRevision());
+        assertEquals("version", n.getVersion());
+        assertTrue(n.isChangeTracking());
+        assertTrue(n.isEuropean());
+        assertEquals("Deployed deploy", n.toDeployment().getDescription());
+    }
+
+    @Test
+    public void apiKeysAreResolvedOncePerRun() throws Exception {
+        FreeStyleProject p = jenkinsRule.createFreeStyleProject();
+        ApiKeyCache apiKeys = new ApiKeyCache(p);
+
+        ApiKeyCache.ApiKey apiKey = apiKeys.get(credentialsId, client.getApiEndpoint());
+        assertNotNull(apiKey);
+        assertEquals(password, apiKey.getPlainText());
+        assertSame(apiKey, apiKeys.get(credentialsId, client.getApiEndpoint()));
+        assertNull(apiKeys.get("unknown", client.getApiEndpoint()));
+    }
+
+    @Test
+    public void freestyleProjectNotifierAsync() throws Exception {
+        FreeStyleProject p = jenkinsRule.createFreeStyleProject();
+
+        List<DeploymentNotificationBean> notifications = new ArrayList<>();
+        notifications.add(new DeploymentNotificationBean(
+                credentialsId,
+                "applicationId",
+                "description",
+                "revision",
+                "changelog",
+                "commit",
+                "deeplink",
+                "user",
+                "entityGuid",
+                "deploymentId",
+                "deploymentType",
+                "groupId",
+                "timestamp",
+                "version",
+                false
+        ));
+
+        NewRelicDeploymentNotifier notifier = spy(new NewRelicDeploymentNotifier(notifications));
+        notifier.setAsync(true);
+        when(notifier.getClient()).thenReturn(client);
+
+        p.getPublishersList().add(notifier);
+        FreeStyleBuild b = p.scheduleBuild2(0).get();
+        jenkinsRule.assertBuildStatus(Result.SUCCESS, b);
+        jenkinsRule.assertLogContains("Queued New Relic deployment notifications", b);
+
+        DeploymentNotificationAction action = b.getAction(DeploymentNotificationAction.class);
+        for (int i = 0; i < 100 && (action == null || action.getOutcomes().isEmpty()); i++) {
+            Thread.sleep(100);
+            action = b.getAction(DeploymentNotificationAction.class);
+        }
+        assertNotNull(action);
+        assertEquals(1, action.getOutcomes().size());
+        assertEquals("entityGuid", action.getOutcomes().get(0).getTarget());
+        assertEquals(DeploymentNotificationAction.Status.DELIVERED, action.getOutcomes().get(0).getStatus());
+        assertNull(action.getOutcomes().get(0).getMessage());
+    }
+
     private static final String LETTERS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
     private static final SecureRandom RANDOM = new SecureRandom();
 
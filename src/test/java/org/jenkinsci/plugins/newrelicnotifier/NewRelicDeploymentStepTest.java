@@ -0,0 +1,167 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.CredentialsScope;
+import com.cloudbees.plugins.credentials.domains.Domain;
+import com.cloudbees.plugins.credentials.impl.UsernamePasswordCredentialsImpl;
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.model.FreeStyleBuild;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import org.jenkinsci.plugins.newrelicnotifier.api.DeploymentResult;
+import org.jenkinsci.plugins.newrelicnotifier.api.NewRelicClient;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class NewRelicDeploymentStepTest {
+
+    private static final String CREDENTIALS_ID = "newrelic";
+
+    @Rule
+    public JenkinsRule jenkinsRule = new JenkinsRule();
+
+    private NewRelicClient client;
+    private StepContext context;
+
+    @Before
+    public void setup() throws Exception {
+        CredentialsProvider.lookupStores(jenkinsRule.getInstance()).iterator().next()
+                .addCredentials(Domain.global(), new UsernamePasswordCredentialsImpl(
+                        CredentialsScope.GLOBAL, CREDENTIALS_ID, "test", "user", "apiKey"));
+
+        client = mock(NewRelicClient.class);
+        when(client.getApiEndpoint(anyBoolean())).thenReturn("api.newrelic.com");
+
+        FreeStyleBuild build = jenkinsRule.buildAndAssertSuccess(jenkinsRule.createFreeStyleProject());
+        context = mock(StepContext.class);
+        when(context.get(Run.class)).thenReturn(build);
+        when(context.get(TaskListener.class)).thenReturn(TaskListener.NULL);
+        when(context.get(EnvVars.class)).thenReturn(new EnvVars("VERSION", UUID.randomUUID().toString()));
+    }
+
+    @Test
+    public void returnsDeploymentIds() throws Exception {
+        when(client.sendNotificationsV2(anyString(), anyList(), eq(false), any())).thenReturn(Arrays.asList(
+                new DeploymentResult("entity1", "deployment1", null),
+                new DeploymentResult("entity2", "deployment2", null)));
+
+        NewRelicDeploymentStep step = spy(new NewRelicDeploymentStep(List.of(notification("entity1"), notification("entity2"))));
+        when(step.getClient()).thenReturn(client);
+
+        assertFalse(step.start(context).start());
+        verify(context, timeout(10000)).onSuccess(Arrays.asList("deployment1", "deployment2"));
+        verify(client).sendNotificationsV2(eq("apiKey"), anyList(), eq(false), any());
+    }
+
+    @Test
+    public void failsWhenNotificationIsRejected() throws Exception {
+        when(client.sendNotificationsV2(anyString(), anyList(), eq(false), any())).thenReturn(List.of(
+                new DeploymentResult("entity1", null, "Invalid entity")));
+
+        NewRelicDeploymentStep step = spy(new NewRelicDeploymentStep(List.of(notification("entity1"))));
+        when(step.getClient()).thenReturn(client);
+
+        assertFalse(step.start(context).start());
+        verify(context, timeout(10000)).onFailure(any(AbortException.class));
+    }
+
+    @Test
+    public void doNotWait() throws Exception {
+        when(client.sendNotificationsV2(anyString(), anyList(), eq(false), any())).thenReturn(List.of(
+                new DeploymentResult("entity1", "deployment1", null)));
+
+        NewRelicDeploymentStep step = spy(new NewRelicDeploymentStep(List.of(notification("entity1"))));
+        step.setWait(false);
+        when(step.getClient()).thenReturn(client);
+
+        assertFalse(step.start(context).start());
+        verify(context, timeout(10000)).onSuccess(null);
+        verify(client, timeout(10000)).sendNotificationsV2(anyString(), anyList(), eq(false), any());
+        Run<?, ?> run = context.get(Run.class);
+        DeploymentNotificationAction action = run.getAction(DeploymentNotificationAction.class);
+        for (int i = 0; i < 100 && action == null; i++) {
+            Thread.sleep(100);
+            action = run.getAction(DeploymentNotificationAction.class);
+        }
+        assertEquals("entity1", action.getOutcomes().get(0).getTarget());
+    }
+
+    @Test
+    public void stopCancelsNotifications() throws Exception {
+        CountDownLatch sending = new CountDownLatch(1);
+        CountDownLatch stopped = new CountDownLatch(1);
+        when(client.sendNotificationsV2(anyString(), anyList(), eq(false), any())).thenAnswer(invocation -> {
+            sending.countDown();
+            stopped.await(10, TimeUnit.SECONDS);
+            return List.of(new DeploymentResult("entity1", "deployment1", null));
+        });
+
+        NewRelicDeploymentStep step = spy(new NewRelicDeploymentStep(List.of(notification("entity1"))));
+        when(step.getClient()).thenReturn(client);
+
+        StepExecution execution = step.start(context);
+        assertFalse(execution.start());
+        assertTrue(sending.await(10, TimeUnit.SECONDS));
+        Exception cause = new InterruptedException("aborted");
+        execution.stop(cause);
+        stopped.countDown();
+
+        verify(context, timeout(10000)).onFailure(cause);
+        Thread.sleep(500);
+        verify(context, never()).onSuccess(any());
+    }
+
+    private static DeploymentNotificationBean notification(String entityGuid) {
+        return new DeploymentNotificationBean(CREDENTIALS_ID, null, "description", null, "changelog", "commit",
+                null, "user", entityGuid, null, "BASIC", null, null, "${VERSION}", false);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, Mads Mohr Christensen
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.newrelicnotifier;
+
+import hudson.model.TaskListener;
+import hudson.util.Secret;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.client.HttpResponseException;
+import org.jenkinsci.plugins.newrelicnotifier.api.CircuitOpenException;
+import org.jenkinsci.plugins.newrelicnotifier.api.DeadlineExceededException;
+import org.jenkinsci.plugins.newrelicnotifier.api.Deployment;
+import org.jenkinsci.plugins.newrelicnotifier.api.NewRelicClient;
+import org.jenkinsci.plugins.newrelicnotifier.api.SharedNotificationException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class NotificationOutboxTest {
+
+    @Rule
+    public JenkinsRule jenkinsRule = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replayDeliversAndRemovesEntries() throws Exception {
+        NotificationOutbox outbox = new NotificationOutbox(folder.newFolder());
+        outbox.add(NotificationOutbox.Entry.forApplication(Secret.fromString("apiKey"), false, "job #1",
+                "applicationId", "description", "revision", "changelog", "user"));
+        outbox.add(NotificationOutbox.Entry.forEntity(Secret.fromString("apiKey"), false, "job #2",
+                new Deployment("changelog", "commit", "deepLink", "BASIC", "description", "entityGuid",
+                        "groupId", "1000", "user", "version")));
+        assertEquals(2, outbox.size());
+
+        NewRelicClient client = mock(NewRelicClient.class);
+        assertEquals(2, outbox.replay(client, 10, TaskListener.NULL));
+        assertEquals(0, outbox.size());
+        verify(client).sendNotification("apiKey", "applicationId", "description", "revision", "changelog", "user", false);
+        verify(client).sendNotificationV2(eq("apiKey"), eq("changelog"), eq("commit"), eq("deepLink"), eq("BASIC"),
+                eq("description"), eq("entityGuid"), eq("groupId"), eq("1000"), eq("user"), eq("version"), eq(false), any());
+    }
+
+    @Test
+    public void replayStopsWhileUnavailable() throws Exception {
+        NotificationOutbox outbox = new NotificationOutbox(folder.newFolder());
+        for (int i = 0; i < 3; i++) {
+            outbox.add(NotificationOutbox.Entry.forApplication(Secret.fromString("apiKey"), false, "job #" + i,
+                    "applicationId" + i, "description", "revision", "changelog", "user"));
+        }
+
+        NewRelicClient client = mock(NewRelicClient.class);
+        doThrow(new ConnectException("Connection refused")).when(client)
+                .sendNotification(anyString(), anyString(), anyString(), anyString(), anyString(), anyString(), anyBoolean());
+        assertEquals(0, outbox.replay(client, 10, TaskListener.NULL));
+        assertEquals(3, outbox.size());
+        verify(client, times(1))
+                .sendNotification(anyString(), anyString(), anyString(), anyString(), anyString(), anyString(), anyBoolean());
+    }
+
+    @Test
+    public void replayDropsRejectedEntries() throws Exception {
+        NotificationOutbox outbox = new NotificationOutbox(folder.newFolder());
+        outbox.add(NotificationOutbox.Entry.forApplication(Secret.fromString("apiKey"), false, "job #1",
+                "applicationId", "description", "revision", "changelog", "user"));
+
+        NewRelicClient client = mock(NewRelicClient.class);
+        doThrow(new HttpResponseException(401, "Unauthorized")).when(client)
+                .sendNotification(anyString(), anyString(), anyString(), anyString(), anyString(), anyString(), anyBoolean());
+        assertEquals(0, outbox.replay(client, 10, TaskListener.NULL));
+        assertEquals(0, outbox.size());
+    }
+
+    @Test
+    public void retryableErrors() {
+        assertTrue(NotificationOutbox.isRetryable(new ConnectException()));
+        assertTrue(NotificationOutbox.isRetryable(new HttpResponseException(503, "Service Unavailable")));
+        assertTrue(NotificationOutbox.isRetryable(new HttpResponseException(429, "Too Many Requests")));
+        assertFalse(NotificationOutbox.isRetryable(new HttpResponseException(400, "Bad Request")));
+        assertFalse(NotificationOutbox.isRetryable(new HttpResponseException(403, "Forbidden")));
+        assertFalse(NotificationOutbox.isRetryable(new HttpResponseException(500, "Internal Server Error")));
+        assertFalse(NotificationOutbox.isRetryable(new HttpResponseException(504, "Gateway Timeout")));
+        assertFalse(NotificationOutbox.isRetryable(new SocketTimeoutException("Read timed out")));
+        assertFalse(NotificationOutbox.isRetryable(new NoHttpResponseException("api.newrelic.com failed to respond")));
+        assertFalse(NotificationOutbox.isRetryable(new IOException("Connection reset")));
+        assertTrue(NotificationOutbox.isRetryable(new CircuitOpenException("api.newrelic.com", 30000)));
+        assertFalse(NotificationOutbox.isRetryable(new SharedNotificationException("guid", new ConnectException())));
+        assertFalse(NotificationOutbox.isRetryable(new DeadlineExceededException("Deadline exceeded")));
+        assertFalse(NotificationOutbox.isRetryable(new InterruptedIOException()));
+    }
+}
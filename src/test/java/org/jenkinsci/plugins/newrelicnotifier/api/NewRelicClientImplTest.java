@@ -1,11 +1,17 @@
 package org.jenkinsci.plugins.newrelicnotifier.api;
 
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import hudson.model.TaskListener;
+import org.apache.http.Header;
 import org.apache.http.HttpVersion;
 import org.apache.http.StatusLine;
+import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHeader;
 import org.apache.http.message.BasicStatusLine;
 import org.junit.Before;
 import org.junit.Test;
@@ -15,16 +21,39 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.net.ConnectException;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 
 import static org.jenkinsci.plugins.newrelicnotifier.api.NewRelicClientImpl.API_HOST;
 import static org.jenkinsci.plugins.newrelicnotifier.api.NewRelicClientImpl.EUROPEAN_API_HOST;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.times;
@@ -59,6 +88,45 @@ public class NewRelicClientImplTest {
         }
     }
 
+    @Test
+    public void getPagesAnnouncedByLinkHeader() throws IOException {
+        when(httpClient.execute(any(HttpUriRequest.class), any(ResponseHandler.class)))
+            .thenAnswer((InvocationOnMock invocation) -> {
+                HttpUriRequest request = invocation.getArgument(0);
+                boolean lastPage = request.getURI().getQuery().equals("page=3");
+                return new ApplicationList(getApplicationMocks(lastPage ? 10 : NewRelicClientImpl.PAGE_SIZE), 3);
+            });
+
+        List<Application> apps = nrClient.getApplications("someapikey", false);
+        assertEquals(2 * NewRelicClientImpl.PAGE_SIZE + 10, apps.size());
+        verify(httpClient, times(3)).execute(any(HttpUriRequest.class), any(ResponseHandler.class));
+    }
+
+    @Test
+    public void parseLinkHeader() {
+        assertEquals(0, NewRelicClientImpl.getLastPage(new Header[0]));
+        assertEquals(30, NewRelicClientImpl.getLastPage(new Header[] {new BasicHeader("Link",
+                "<https://api.newrelic.com/v2/applications.json?page=2>; rel=\"next\", "
+                        + "<https://api.newrelic.com/v2/applications.json?page=30>; rel=\"last\"")}));
+        assertEquals(0, NewRelicClientImpl.getLastPage(new Header[] {new BasicHeader("Link",
+                "<https://api.newrelic.com/v2/applications.json?page=3>; rel=\"next\"")}));
+    }
+
+    @Test
+    public void parseApplicationsPage() throws IOException {
+        String body = "{\"applications\":["
+                + "{\"id\":1,\"name\":\"app\",\"language\":\"java\",\"settings\":{\"app_apdex_threshold\":0.5},\"links\":{\"servers\":[1,2]}},"
+                + "{\"id\":2,\"name\":\"app\",\"reporting\":false}"
+                + "],\"links\":{\"application.servers\":\"/v2/servers?ids={server_ids}\"}}";
+        CompactApplicationList apps = NewRelicClientImpl.parseApplications(new StringReader(body));
+
+        assertEquals(2, apps.size());
+        assertEquals(1L, apps.getId(0));
+        assertEquals("2", apps.get(1).getId());
+        assertEquals("app", apps.get(1).getName());
+        assertSame(apps.getName(0), apps.getName(1));
+    }
+
     @Test
     public void test_getApplications() throws IOException {
         test_getApplicationsParmeterized(false, API_HOST);
@@ -122,17 +190,51 @@ public class NewRelicClientImplTest {
         }
     }
 
+    @Test
+    public void sharedHttpClientPerHost() {
+        NewRelicClientImpl client = new NewRelicClientImpl();
+        assertSame(client.getHttpClient(API_HOST), new NewRelicClientImpl().getHttpClient(API_HOST));
+        assertNotSame(client.getHttpClient(API_HOST), client.getHttpClient(EUROPEAN_API_HOST));
+    }
+
     @Test
     public void makePayloadTest() {
-        String result = nrClient.makePayload("","","","","","test","","","jenkins","1");
-        String expected = "{\"query\":\"mutation {changeTrackingCreateDeployment(deployment: {user: \\\"jenkins\\\", entityGuid: \\\"test\\\", version: \\\"1\\\"}) {deploymentId}}\"}";
+        String result = new String(nrClient.makePayload("","","","","","test","","","jenkins","1"), StandardCharsets.UTF_8);
+        String expected = "{\"query\":\"mutation ($deployment: ChangeTrackingDeploymentInput!) {changeTrackingCreateDeployment(deployment: $deployment) {deploymentId}}\","
+                + "\"variables\":{\"deployment\":{\"user\":\"jenkins\",\"entityGuid\":\"test\",\"version\":\"1\"}}}";
         assertEquals(expected, result);
 
-        result = nrClient.makePayload("","","","BLUE_GREEN","","test","","","jenkins","1");
-        expected = "{\"query\":\"mutation {changeTrackingCreateDeployment(deployment: {user: \\\"jenkins\\\", deploymentType: BLUE_GREEN, entityGuid: \\\"test\\\", version: \\\"1\\\"}) {deploymentId}}\"}";
+        result = new String(nrClient.makePayload("","","","BLUE_GREEN","","test","","1700000000000","jenkins","1"), StandardCharsets.UTF_8);
+        expected = "{\"query\":\"mutation ($deployment: ChangeTrackingDeploymentInput!) {changeTrackingCreateDeployment(deployment: $deployment) {deploymentId}}\","
+                + "\"variables\":{\"deployment\":{\"user\":\"jenkins\",\"deploymentType\":\"BLUE_GREEN\",\"entityGuid\":\"test\",\"version\":\"1\",\"timestamp\":1700000000000}}}";
         assertEquals(expected, result);
     }
 
+    @Test
+    public void makePayloadEscapesValues() {
+        String changelog = "Fix \"quoted\" names\nand back\\slashes";
+        byte[] payload = nrClient.makePayload(changelog,"","","","","test","","","jenkins","1");
+        JsonObject variables = JsonParser.parseString(new String(payload, StandardCharsets.UTF_8))
+                .getAsJsonObject().getAsJsonObject("variables").getAsJsonObject("deployment");
+        assertEquals(changelog, variables.get("changelog").getAsString());
+    }
+
+    @Test
+    public void compressLongChangelogs() throws IOException {
+        Deployment small = new Deployment("short", "", "", "", "", "test", "", "", "jenkins", "1");
+        Deployment large = new Deployment("x".repeat(NewRelicClientImpl.COMPRESS_CHANGELOG_CHARS), "", "", "", "",
+                "test", "", "", "jenkins", "1");
+        assertFalse(NewRelicClientImpl.compress(List.of(small)));
+        assertTrue(NewRelicClientImpl.compress(List.of(large)));
+
+        byte[] compressed = DeploymentMutation.write(large, true);
+        assertTrue(compressed.length < DeploymentMutation.write(large).length);
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            assertEquals(new String(DeploymentMutation.write(large), StandardCharsets.UTF_8),
+                    new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+    }
+
     @Test
     public void parsePayload() {
         String result = nrClient.parseResponseBody("{\"data\":{\"changeTrackingCreateDeployment\":{\"deploymentId\":\"71c3f8f5-cecc-4299-aa0f-18f3fafa6313\",\"user\":\"justinlewis\"}}}");
@@ -140,6 +242,64 @@ public class NewRelicClientImplTest {
         assertEquals(expected, result);
     }
 
+    @Test
+    public void makeBatchPayloadTest() {
+        List<Deployment> deployments = List.of(
+                new Deployment("", "", "", "", "", "guid1", "", "", "jenkins", "1"),
+                new Deployment("", "", "", "BLUE_GREEN", "", "guid2", "", "", "jenkins", "2"));
+        String result = new String(nrClient.makeBatchPayload(deployments), StandardCharsets.UTF_8);
+        String expected = "{\"query\":\"mutation ($d0: ChangeTrackingDeploymentInput!, $d1: ChangeTrackingDeploymentInput!) {"
+                + "d0: changeTrackingCreateDeployment(deployment: $d0) {deploymentId} "
+                + "d1: changeTrackingCreateDeployment(deployment: $d1) {deploymentId}"
+                + "}\",\"variables\":{"
+                + "\"d0\":{\"user\":\"jenkins\",\"entityGuid\":\"guid1\",\"version\":\"1\"},"
+                + "\"d1\":{\"user\":\"jenkins\",\"deploymentType\":\"BLUE_GREEN\",\"entityGuid\":\"guid2\",\"version\":\"2\"}"
+                + "}}";
+        assertEquals(expected, result);
+    }
+
+    @Test
+    public void parseBatchPayload() {
+        List<Deployment> deployments = List.of(
+                new Deployment("", "", "", "", "", "guid1", "", "", "", "1"),
+                new Deployment("", "", "", "", "", "guid2", "", "", "", "1"),
+                new Deployment("", "", "", "", "", "guid3", "", "", "", "1"));
+        List<DeploymentResult> results = nrClient.parseBatchResponseBody("{\"data\":{"
+                + "\"d0\":{\"deploymentId\":\"71c3f8f5-cecc-4299-aa0f-18f3fafa6313\"},"
+                + "\"d1\":null,"
+                + "\"d2\":null},"
+                + "\"errors\":[{\"message\":\"Entity not found\",\"path\":[\"d1\"]}]}", deployments);
+
+        assertEquals(3, results.size());
+        assertEquals("71c3f8f5-cecc-4299-aa0f-18f3fafa6313", results.get(0).getDeploymentId());
+        assertEquals("guid2", results.get(1).getEntityGuid());
+        assertEquals("Entity not found", results.get(1).getError());
+        assertNull(results.get(2).getDeploymentId());
+        assertNull(results.get(2).getError());
+    }
+
+    @Test
+    public void sendBatchInOneRequest() throws IOException {
+        when(httpClient.execute(any()))
+                .thenAnswer((InvocationOnMock invocation) -> {
+                    CloseableHttpResponse response = mock(CloseableHttpResponse.class);
+                    StatusLine statusLine = new BasicStatusLine(HttpVersion.HTTP_1_1, HttpURLConnection.HTTP_OK, "OK");
+                    when(response.getStatusLine()).thenReturn(statusLine);
+                    when(response.getEntity()).thenReturn(new StringEntity("{\"data\":{"
+                            + "\"d0\":{\"deploymentId\":\"71c3f8f5-cecc-4299-aa0f-18f3fafa6313\"},"
+                            + "\"d1\":{\"deploymentId\":\"71c3f8f5-cecc-4299-aa0f-18f3fafa6314\"}}}"));
+                    return response;
+                });
+
+        List<DeploymentResult> results = nrClient.sendNotificationsV2("1", List.of(
+                new Deployment("", "", "", "", "", "guid1", "", "", "", "1"),
+                new Deployment("", "", "", "", "", "guid2", "", "", "", "1")), false, (TaskListener) () -> System.out);
+
+        verify(httpClient, times(1)).execute(any());
+        assertTrue(results.get(0).isSuccess());
+        assertTrue(results.get(1).isSuccess());
+    }
+
     @Test
     public void getOnePageOfApplications() throws IOException {
         int expectedSize = NewRelicClientImpl.PAGE_SIZE - 50;
@@ -173,9 +333,420 @@ public class NewRelicClientImplTest {
     private List<Application> getApplicationMocks(int size) {
         List<Application> apps = new LinkedList<>();
         for (int i = 0; i < size; i++) {
-            apps.add(mock(Application.class));
+            apps.add(new Application(String.valueOf(i), "application" + i));
         }
         return apps;
     }
 
+
+    @Test
+    public void retryServiceUnavailable() throws IOException {
+        when(httpClient.execute(any()))
+                .thenAnswer(invocation -> mockResponse(HttpURLConnection.HTTP_UNAVAILABLE))
+                .thenAnswer(invocation -> mockResponse(HttpURLConnection.HTTP_CREATED));
+
+        nrClient.sendNotification("1", "applicationId", "description", "revision", "changelog", "user", false);
+        verify(httpClient, times(2)).execute(any());
+    }
+
+    @Test
+    public void doNotSendAfterDeadline() throws IOException {
+        try (DeliveryTrace trace = DeliveryTrace.start().limit(Timeouts.DEFAULT, System.nanoTime())) {
+            nrClient.sendNotification("1", "applicationId", "description", "revision", "changelog", "user", false);
+            fail("Expected an exception.");
+        } catch (DeadlineExceededException e) {
+            verify(httpClient, times(0)).execute(any());
+        }
+    }
+
+    @Test
+    public void doNotRetryPastDeadline() throws IOException {
+        when(httpClient.execute(any())).thenAnswer(invocation -> {
+            Thread.sleep(100);
+            return mockResponse(HttpURLConnection.HTTP_UNAVAILABLE);
+        });
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50);
+        try (DeliveryTrace trace = DeliveryTrace.start().limit(Timeouts.DEFAULT, deadline)) {
+            nrClient.sendNotification("1", "applicationId", "description", "revision", "changelog", "user", false);
+            fail("Expected an exception.");
+        } catch (DeadlineExceededException e) {
+            verify(httpClient, times(1)).execute(any());
+        }
+    }
+
+    @Test
+    public void recordMetrics() throws IOException {
+        ClientMetrics.Recorder recorder = mock(ClientMetrics.Recorder.class);
+        ClientMetrics.setRecorder(recorder);
+        try {
+            when(httpClient.execute(any()))
+                    .thenAnswer(invocation -> mockResponse(HttpURLConnection.HTTP_UNAVAILABLE))
+                    .thenAnswer(invocation -> mockResponse(HttpURLConnection.HTTP_CREATED));
+
+            nrClient.sendNotification("1", "applicationId", "description", "revision", "changelog", "user", true);
+            verify(recorder).response(true, HttpURLConnection.HTTP_UNAVAILABLE);
+            verify(recorder).response(true, HttpURLConnection.HTTP_CREATED);
+            verify(recorder).retry(true);
+            verify(recorder).call(eq(ClientMetrics.SEND_NOTIFICATION), eq(true), anyLong(), eq(true));
+        } finally {
+            ClientMetrics.setRecorder(null);
+        }
+    }
+
+    @Test
+    public void sendNotificationV2Async() throws Exception {
+        when(httpClient.execute(any()))
+                .thenAnswer(invocation -> mockResponse(HttpURLConnection.HTTP_UNAVAILABLE))
+                .thenAnswer(invocation -> {
+                    CloseableHttpResponse response = mockResponse(HttpURLConnection.HTTP_OK);
+                    when(response.getEntity()).thenReturn(new StringEntity(
+                            "{\"data\":{\"changeTrackingCreateDeployment\":{\"deploymentId\":\"deployment1\"}}}"));
+                    return response;
+                });
+
+        String deploymentId = nrClient.sendNotificationV2Async("1", "", "", "", "", "", "guid", "", "", "", "1", false,
+                TaskListener.NULL).get(10, TimeUnit.SECONDS);
+        assertEquals("deployment1", deploymentId);
+        verify(httpClient, times(2)).execute(any());
+    }
+
+    @Test
+    public void sendNotificationAsyncFailsOnBadRequest() throws Exception {
+        when(httpClient.execute(any())).thenAnswer(invocation -> mockResponse(HttpURLConnection.HTTP_BAD_REQUEST));
+
+        try {
+            nrClient.sendNotificationAsync("1", "applicationId", "description", "revision", "changelog", "user", false)
+                    .get(10, TimeUnit.SECONDS);
+            fail("Expected an exception.");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof HttpResponseException);
+            assertEquals(HttpURLConnection.HTTP_BAD_REQUEST, ((HttpResponseException) e.getCause()).getStatusCode());
+        }
+        verify(httpClient, times(1)).execute(any());
+    }
+
+    @Test
+    public void asyncCallsKeepCallerDeadline() throws Exception {
+        CompletableFuture<Void> sent;
+        try (DeliveryTrace trace = DeliveryTrace.start().limit(Timeouts.DEFAULT, System.nanoTime() + 1)) {
+            Thread.sleep(1);
+            sent = nrClient.sendNotificationAsync("1", "applicationId", "description", "revision", "changelog",
+                    "user", false);
+        }
+        try {
+            sent.get(10, TimeUnit.SECONDS);
+            fail("Expected an exception.");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof DeadlineExceededException);
+        }
+        verify(httpClient, times(0)).execute(any());
+    }
+
+    @Test
+    public void doNotRetryBadRequest() throws IOException {
+        when(httpClient.execute(any())).thenAnswer(invocation -> mockResponse(HttpURLConnection.HTTP_BAD_REQUEST));
+
+        try {
+            nrClient.sendNotification("1", "applicationId", "description", "revision", "changelog", "user", false);
+            fail("Expected an exception.");
+        } catch (HttpResponseException e) {
+            assertEquals(HttpURLConnection.HTTP_BAD_REQUEST, e.getStatusCode());
+        }
+        verify(httpClient, times(1)).execute(any());
+    }
+
+    @Test
+    public void doNotRetryAfterRequestSent() throws IOException {
+        when(httpClient.execute(any()))
+                .thenThrow(new ConnectException("Connection refused"))
+                .thenThrow(new SocketTimeoutException("Read timed out"));
+
+        try {
+            nrClient.sendNotification("1", "applicationId", "description", "revision", "changelog", "user", false);
+            fail("Expected an exception.");
+        } catch (SocketTimeoutException e) {
+            verify(httpClient, times(2)).execute(any());
+        }
+    }
+
+    @Test
+    public void doNotRetryServerErrors() throws IOException {
+        when(httpClient.execute(any())).thenAnswer(invocation -> mockResponse(HttpURLConnection.HTTP_INTERNAL_ERROR));
+
+        try {
+            nrClient.sendNotification("1", "applicationId", "description", "revision", "changelog", "user", false);
+            fail("Expected an exception.");
+        } catch (HttpResponseException e) {
+            assertEquals(HttpURLConnection.HTTP_INTERNAL_ERROR, e.getStatusCode());
+        }
+        verify(httpClient, times(1)).execute(any());
+    }
+
+    @Test
+    public void limitAttemptsOfAllRetries() throws IOException {
+        when(httpClient.execute(any()))
+                .thenAnswer(invocation -> mockResponse(HttpURLConnection.HTTP_UNAVAILABLE))
+                .thenAnswer(invocation -> mockResponse(HttpURLConnection.HTTP_OK));
+
+        nrClient.sendNotificationV2("1", "", "", "", "", "", "guid", "", "", "", "1", false, TaskListener.NULL);
+        verify(httpClient, times(3)).execute(any());
+    }
+
+    @Test
+    public void retryDelay() {
+        RetryPolicy policy = new RetryPolicy(3, 100, 1000);
+        for (int attempt = 1; attempt <= 10; attempt++) {
+            long delay = policy.getDelay(attempt);
+            assertTrue(delay >= 0 && delay <= Math.min(1000, 100L << (attempt - 1)));
+        }
+        assertEquals(0, policy.getDelay(1, new BasicHeader("Retry-After", "0")));
+        assertEquals(-1, policy.getDelay(1, new BasicHeader("Retry-After", "120")));
+        assertEquals(5000, RetryPolicy.parseRetryAfter("5", 0));
+        assertEquals(-1, RetryPolicy.parseRetryAfter("soon", 0));
+        assertEquals(2000, RetryPolicy.parseRetryAfter("Thu, 01 Jan 1970 00:00:02 GMT", 0));
+    }
+
+    @Test
+    public void circuitBreakerOpensAfterFailures() {
+        CircuitBreaker breaker = new CircuitBreaker("circuit.example.com");
+        for (int i = 0; i < CircuitBreaker.FAILURE_THRESHOLD; i++) {
+            assertFalse(breaker.isOpen());
+            breaker.recordFailure();
+        }
+        assertTrue(breaker.isOpen());
+        try {
+            breaker.checkAvailable();
+            fail("Expected the circuit to be open.");
+        } catch (CircuitOpenException e) {
+            assertTrue(e.getMessage().contains("circuit.example.com"));
+        }
+        breaker.recordSuccess();
+        assertFalse(breaker.isOpen());
+    }
+
+    @Test
+    public void rateLimiterQueuesRequests() {
+        RateLimiter.configure(60, 2);
+        try {
+            RateLimiter limiter = new RateLimiter(API_HOST, "digest");
+            long now = System.nanoTime();
+            assertEquals(0, limiter.reserve(now));
+            assertEquals(0, limiter.reserve(now));
+            assertEquals(TimeUnit.SECONDS.toNanos(1), limiter.reserve(now));
+            assertEquals(TimeUnit.SECONDS.toNanos(2), limiter.reserve(now));
+            assertEquals(4, limiter.getGranted());
+            assertEquals(2, limiter.getThrottled());
+        } finally {
+            RateLimiter.configure(600, 20);
+        }
+    }
+
+    @Test
+    public void coalesceIdenticalNotifications() throws IOException {
+        NewRelicClient delegate = mock(NewRelicClient.class);
+        doAnswer(invocation -> {
+            DeliveryTrace.deployed("deployment-" + System.nanoTime());
+            return null;
+        }).when(delegate).sendNotificationV2(any(), any(), any(), any(), any(), any(), any(), any(), any(), any(),
+                any(), anyBoolean(), any());
+        NewRelicClient coalescing = new CoalescingNewRelicClient(delegate, 60);
+        String apiKey = "coalesce-" + System.nanoTime();
+        TaskListener listener = TaskListener.NULL;
+
+        try (DeliveryTrace trace = DeliveryTrace.start()) {
+            for (int i = 0; i < 2; i++) {
+                coalescing.sendNotificationV2(apiKey, "changelog", "commit", "deeplink", "BASIC", "description",
+                        "entityGuid", "groupId", "timestamp", "user", "1.0", false, listener);
+            }
+            coalescing.sendNotificationV2(apiKey, "changelog", "commit", "deeplink", "BASIC", "description",
+                    "entityGuid", "groupId", "timestamp", "user", "1.1", false, listener);
+        }
+        verify(delegate, times(2)).sendNotificationV2(any(), any(), any(), any(), any(), any(), any(), any(), any(),
+                any(), any(), anyBoolean(), any());
+    }
+
+    @Test
+    public void doNotCoalesceUnconfirmedNotifications() throws IOException {
+        NewRelicClient delegate = mock(NewRelicClient.class);
+        NewRelicClient coalescing = new CoalescingNewRelicClient(delegate, 60);
+        String apiKey = "coalesce-" + System.nanoTime();
+
+        try (DeliveryTrace trace = DeliveryTrace.start()) {
+            for (int i = 0; i < 2; i++) {
+                coalescing.sendNotificationV2(apiKey, "changelog", "commit", "deeplink", "BASIC", "description",
+                        "entityGuid", "groupId", "timestamp", "user", "1.0", false, TaskListener.NULL);
+            }
+        }
+        verify(delegate, times(2)).sendNotificationV2(any(), any(), any(), any(), any(), any(), any(), any(), any(),
+                any(), any(), anyBoolean(), any());
+    }
+
+    @Test
+    public void shareFailuresWithWaitingCallers() throws Exception {
+        NewRelicClient delegate = mock(NewRelicClient.class);
+        CountDownLatch sending = new CountDownLatch(1);
+        CountDownLatch failing = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            sending.countDown();
+            failing.await();
+            throw new HttpResponseException(HttpURLConnection.HTTP_UNAVAILABLE, "Service Unavailable");
+        }).when(delegate).sendNotification(any(), any(), any(), any(), any(), any(), anyBoolean());
+        NewRelicClient coalescing = new CoalescingNewRelicClient(delegate, 60);
+        String apiKey = "coalesce-" + System.nanoTime();
+
+        CompletableFuture<Void> leader = CompletableFuture.runAsync(() -> {
+            try {
+                coalescing.sendNotification(apiKey, "applicationId", "description", "revision", "changelog", "user",
+                        false);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        sending.await();
+        CompletableFuture.delayedExecutor(100, TimeUnit.MILLISECONDS).execute(failing::countDown);
+        try {
+            coalescing.sendNotification(apiKey, "applicationId", "description", "revision", "changelog", "user", false);
+            fail("Expected an exception.");
+        } catch (SharedNotificationException e) {
+            assertTrue(e.getCause() instanceof HttpResponseException);
+        }
+        try {
+            leader.join();
+            fail("Expected an exception.");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause().getCause() instanceof HttpResponseException);
+        }
+        verify(delegate, times(1)).sendNotification(any(), any(), any(), any(), any(), any(), anyBoolean());
+    }
+
+    @Test
+    public void coalesceBatchedNotifications() throws IOException {
+        NewRelicClient delegate = mock(NewRelicClient.class);
+        when(delegate.sendNotificationsV2(any(), anyList(), anyBoolean(), any())).thenAnswer(invocation -> {
+            List<Deployment> deployments = invocation.getArgument(1);
+            List<DeploymentResult> results = new LinkedList<>();
+            for (Deployment d : deployments) {
+                results.add(new DeploymentResult(d.getEntityGuid(), "id-" + d.getEntityGuid(), null));
+            }
+            return results;
+        });
+        NewRelicClient coalescing = new CoalescingNewRelicClient(delegate, 60);
+        String apiKey = "coalesce-" + System.nanoTime();
+
+        Deployment a = new Deployment("changelog", "commit", "deeplink", "BASIC", "description", "guidA",
+                "groupId", "timestamp", "user", "1.0");
+        Deployment b = new Deployment("changelog", "commit", "deeplink", "BASIC", "description", "guidB",
+                "groupId", "timestamp", "user", "1.0");
+        List<DeploymentResult> results = coalescing.sendNotificationsV2(apiKey, List.of(a, b, a), false, TaskListener.NULL);
+        assertEquals(3, results.size());
+        assertEquals("id-guidA", results.get(2).getDeploymentId());
+
+        results = coalescing.sendNotificationsV2(apiKey, List.of(b), false, TaskListener.NULL);
+        assertEquals("id-guidB", results.get(0).getDeploymentId());
+
+        ArgumentCaptor<List<Deployment>> sent = ArgumentCaptor.forClass(List.class);
+        verify(delegate, times(1)).sendNotificationsV2(any(), sent.capture(), anyBoolean(), any());
+        assertEquals(2, sent.getValue().size());
+    }
+
+    @Test
+    public void filterApplicationsByDefault() throws IOException {
+        NewRelicClient client = mock(NewRelicClient.class, CALLS_REAL_METHODS);
+        doAnswer(invocation -> List.of(new Application("1", "Checkout API"), new Application("2", "Search")))
+                .when(client).getApplications(any(), anyBoolean());
+
+        List<Application> apps = client.getApplications("1", false, "checkout");
+        assertEquals(1, apps.size());
+        assertEquals("1", apps.get(0).getId());
+    }
+
+    @Test
+    public void sendBatchOneAtATimeByDefault() throws IOException {
+        NewRelicClient client = mock(NewRelicClient.class, CALLS_REAL_METHODS);
+        doAnswer(invocation -> {
+            if ("guidB".equals(invocation.getArgument(6))) {
+                throw new NerdGraphException("Entity not found", false);
+            }
+            DeliveryTrace.deployed("id-" + invocation.getArgument(6));
+            return null;
+        }).when(client).sendNotificationV2(any(), any(), any(), any(), any(), any(), any(), any(), any(), any(), any(),
+                anyBoolean(), any());
+
+        Deployment a = new Deployment("changelog", "commit", "deeplink", "BASIC", "description", "guidA",
+                "groupId", "timestamp", "user", "1.0");
+        Deployment b = new Deployment("changelog", "commit", "deeplink", "BASIC", "description", "guidB",
+                "groupId", "timestamp", "user", "1.0");
+        List<DeploymentResult> results;
+        try (DeliveryTrace trace = DeliveryTrace.start()) {
+            results = client.sendNotificationsV2("1", List.of(a, b), false, TaskListener.NULL);
+        }
+        assertEquals("id-guidA", results.get(0).getDeploymentId());
+        assertNull(results.get(1).getDeploymentId());
+        assertEquals("Entity not found", results.get(1).getError());
+        assertFalse(results.get(1).isRetryable());
+
+        try {
+            client.sendNotificationsV2("1", List.of(b, a), false, TaskListener.NULL);
+            fail("Expected an exception.");
+        } catch (NerdGraphException e) {
+            // nothing was sent, the caller decides what to do with the whole batch
+        }
+    }
+
+    @Test
+    public void failOnGraphQLErrors() throws IOException {
+        when(httpClient.execute(any())).thenAnswer(invocation -> {
+            CloseableHttpResponse response = mockResponse(HttpURLConnection.HTTP_OK);
+            when(response.getEntity()).thenReturn(new StringEntity("{\"data\":{\"changeTrackingCreateDeployment\":null},"
+                    + "\"errors\":[{\"message\":\"Entity not found\",\"path\":[\"changeTrackingCreateDeployment\"],"
+                    + "\"extensions\":{\"errorClass\":\"BAD_USER_INPUT\"}}]}"));
+            return response;
+        });
+
+        try {
+            nrClient.sendNotificationV2("1", "", "", "", "", "", "guid", "", "", "", "1", false, TaskListener.NULL);
+            fail("Expected an exception.");
+        } catch (NerdGraphException e) {
+            assertEquals("Entity not found", e.getMessage());
+            assertFalse(e.isRetryable());
+        }
+        verify(httpClient, times(1)).execute(any());
+    }
+
+    @Test
+    public void parseNerdGraphErrors() throws IOException {
+        NerdGraphResponse response = NerdGraphResponse.parse(new StringReader("{\"data\":{"
+                + "\"d0\":{\"deploymentId\":\"71c3f8f5-cecc-4299-aa0f-18f3fafa6313\",\"user\":\"jenkins\"},\"d1\":null},"
+                + "\"errors\":[{\"message\":\"Timed out\",\"path\":[\"d1\",\"deploymentId\"],"
+                + "\"locations\":[{\"line\":1,\"column\":2}],\"extensions\":{\"errorClass\":\"TIMEOUT\"}},"
+                + "{\"message\":\"Something else\"}]}"));
+        assertEquals("71c3f8f5-cecc-4299-aa0f-18f3fafa6313", response.getDeploymentId("d0"));
+        assertNull(response.getDeploymentId("d1"));
+        assertEquals(2, response.getErrors().size());
+        assertEquals("Timed out", response.getError("d1").getMessage());
+        assertTrue(response.getError("d1").isRetryable());
+        assertEquals("Something else", response.getError("d2").getMessage());
+        assertFalse(response.getError("d2").isRetryable());
+    }
+
+    @Test
+    public void readErrorBodyIsBounded() throws IOException {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < NewRelicClientImpl.MAX_ERROR_BODY + 10; i++) {
+            body.append('\u00e6');
+        }
+        String result = NewRelicClientImpl.readErrorBody(new StringEntity(body.toString(), StandardCharsets.UTF_8));
+        assertEquals(NewRelicClientImpl.MAX_ERROR_BODY + "...".length(), result.length());
+        assertTrue(result.startsWith("\u00e6\u00e6"));
+        assertNull(NewRelicClientImpl.readErrorBody(null));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static CloseableHttpResponse mockResponse(int status) {
+        CloseableHttpResponse response = mock(CloseableHttpResponse.class);
+        StatusLine statusLine = new BasicStatusLine(HttpVersion.HTTP_1_1, status, "");
+        when(response.getStatusLine()).thenReturn(statusLine);
+        return response;
+    }
 }
@@ -34,6 +34,11 @@ public class NewRelicClientStub extends NewRelicClientImpl {
         return httpClient;
     }
 
+    @Override
+    protected RetryPolicy getRetryPolicy() {
+        return new RetryPolicy(3, 0, 0);
+    }
+
     public void setHttpClient(CloseableHttpClient httpClient) {
         this.httpClient = httpClient;
     }